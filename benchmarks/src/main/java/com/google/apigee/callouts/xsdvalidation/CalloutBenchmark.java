@@ -0,0 +1,115 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+import com.apigee.flow.execution.ExecutionContext;
+import com.apigee.flow.execution.ExecutionResult;
+import com.apigee.flow.message.MessageContext;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The callout end to end, as a request sees it once the schema is cached: reading the payload
+ * from the message, the optional required-root check, the cache lookup and validation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CalloutBenchmark {
+
+  @Param({"purchase-order", "soap", "included-schema"})
+  public String fixture;
+
+  @Param({"stream", "dom"})
+  public String mode;
+
+  @Param({"false", "true"})
+  public boolean requiredRoot;
+
+  private XsdValidatorCallout callout;
+  private Map<String, Object> variables;
+  private ExecutionContext exeCtxt;
+
+  @Setup
+  public void setup() {
+    Map<String, String> properties = new HashMap<String, String>();
+    variables = new HashMap<String, Object>();
+    String document;
+    switch (fixture) {
+      case "purchase-order":
+        // the XSD comes from a variable, so each request looks up the compiled schema
+        variables.put("xsd", Fixtures.read("schema-for-purchase-order.xsd"));
+        properties.put("schema", "{xsd}");
+        properties.put("required-root", "purchaseOrder");
+        properties.put("required-root-namespace", "http://tempuri.org/po.xsd");
+        document = "purchase-order.xml";
+        break;
+      case "soap":
+        // a static XSD, compiled when the callout is created
+        properties.put("schema", "file://soap-envelope-1.1.xsd");
+        properties.put("required-root", "Envelope");
+        properties.put("required-root-namespace", "http://schemas.xmlsoap.org/soap/envelope/");
+        document = "Sample-Soap.xml";
+        break;
+      case "included-schema":
+        variables.put("parent", Fixtures.read("w3c-include-parent.xsd"));
+        variables.put("child", Fixtures.read("w3c-include-child.xsd"));
+        properties.put("schema", "{parent}");
+        properties.put("schema:w3c-include-child.xsd", "{child}");
+        properties.put("required-root", "echoInclude");
+        properties.put(
+            "required-root-namespace", "http://www.w3.org/2002/ws/databinding/examples/6/09/");
+        document = "echoInclude.xml";
+        break;
+      default:
+        throw new IllegalArgumentException(fixture);
+    }
+    if (!requiredRoot) {
+      properties.remove("required-root");
+      properties.remove("required-root-namespace");
+    }
+    properties.put("use-dom-source", Boolean.toString(mode.equals("dom")));
+    variables.put("message", Fixtures.newMessage(Fixtures.readBytes(document)));
+
+    callout = new XsdValidatorCallout(properties);
+    exeCtxt = Fixtures.newExecutionContext();
+    MessageContext msgCtxt = Fixtures.newMessageContext(variables);
+    if (callout.execute(msgCtxt, exeCtxt) != ExecutionResult.SUCCESS
+        || !Boolean.TRUE.equals(msgCtxt.getVariable("xsd_valid"))) {
+      throw new IllegalStateException(
+          "fixture does not validate: " + msgCtxt.getVariable("xsd_error"));
+    }
+  }
+
+  @Benchmark
+  public ExecutionResult execute() {
+    return callout.execute(Fixtures.newMessageContext(variables), exeCtxt);
+  }
+}
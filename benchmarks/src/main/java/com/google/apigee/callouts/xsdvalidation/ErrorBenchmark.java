@@ -0,0 +1,92 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+import com.apigee.flow.execution.ExecutionContext;
+import com.apigee.flow.execution.ExecutionResult;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The callout with documents that fail: invalid against the schema, with and without an error
+ * budget; not well-formed; and with the wrong root element.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ErrorBenchmark {
+
+  @Param({"multiple-errors", "multiple-errors-max-1", "not-well-formed", "wrong-root"})
+  public String scenario;
+
+  @Param({"stream", "dom"})
+  public String mode;
+
+  private XsdValidatorCallout callout;
+  private Map<String, Object> variables;
+  private ExecutionContext exeCtxt;
+
+  @Setup
+  public void setup() {
+    Map<String, String> properties = new HashMap<String, String>();
+    variables = new HashMap<String, Object>();
+    variables.put("xsd", Fixtures.read("schema-for-purchase-order.xsd"));
+    properties.put("schema", "{xsd}");
+    properties.put("use-dom-source", Boolean.toString(mode.equals("dom")));
+    String document;
+    switch (scenario) {
+      case "multiple-errors":
+        document = "purchase-order-multiple-errors.xml";
+        break;
+      case "multiple-errors-max-1":
+        document = "purchase-order-multiple-errors.xml";
+        properties.put("max-errors", "1");
+        break;
+      case "not-well-formed":
+        document = "purchase-order-not-wellformed.xml";
+        break;
+      case "wrong-root":
+        document = "purchase-order.xml";
+        properties.put("required-root", "invoice");
+        properties.put("required-root-namespace", "http://tempuri.org/po.xsd");
+        break;
+      default:
+        throw new IllegalArgumentException(scenario);
+    }
+    variables.put("message", Fixtures.newMessage(Fixtures.readBytes(document)));
+    callout = new XsdValidatorCallout(properties);
+    exeCtxt = Fixtures.newExecutionContext();
+  }
+
+  @Benchmark
+  public ExecutionResult execute() {
+    return callout.execute(Fixtures.newMessageContext(variables), exeCtxt);
+  }
+}
@@ -0,0 +1,121 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+import com.apigee.flow.execution.ExecutionContext;
+import com.apigee.flow.message.Message;
+import com.apigee.flow.message.MessageContext;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The functional test fixtures, and stand-ins for the Apigee runtime objects. The fixtures are
+ * copied from callout/src/test/resources/test-data onto the classpath of the benchmarks jar.
+ */
+public class Fixtures {
+  private Fixtures() {}
+
+  public static byte[] readBytes(String name) {
+    try (InputStream in = Fixtures.class.getResourceAsStream("/" + name)) {
+      if (in == null) {
+        throw new IllegalStateException("fixture not found: " + name);
+      }
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+      byte[] data = new byte[4096];
+      int n;
+      while ((n = in.read(data, 0, data.length)) != -1) {
+        buffer.write(data, 0, n);
+      }
+      return buffer.toByteArray();
+    } catch (IOException exc) {
+      throw new IllegalStateException(exc);
+    }
+  }
+
+  public static String read(String name) {
+    return new String(readBytes(name), StandardCharsets.UTF_8);
+  }
+
+  /** A MessageContext that keeps variables in a map, as the TestNG mock does. */
+  public static MessageContext newMessageContext(Map<String, Object> variables) {
+    Map<String, Object> vars = new HashMap<String, Object>(variables);
+    return (MessageContext)
+        Proxy.newProxyInstance(
+            Fixtures.class.getClassLoader(),
+            new Class<?>[] {MessageContext.class},
+            (proxy, method, args) -> {
+              switch (method.getName()) {
+                case "getVariable":
+                  return vars.get((String) args[0]);
+                case "setVariable":
+                  vars.put((String) args[0], args[1]);
+                  return true;
+                case "removeVariable":
+                  vars.remove((String) args[0]);
+                  return true;
+                case "getMessage":
+                  return vars.get("message");
+                case "hashCode":
+                  return System.identityHashCode(proxy);
+                case "equals":
+                  return proxy == args[0];
+                case "toString":
+                  return "MessageContext" + vars;
+                default:
+                  throw new UnsupportedOperationException(method.getName());
+              }
+            });
+  }
+
+  /** A Message whose content is the given bytes; each call gets a fresh stream. */
+  public static Message newMessage(byte[] content) {
+    return (Message)
+        Proxy.newProxyInstance(
+            Fixtures.class.getClassLoader(),
+            new Class<?>[] {Message.class},
+            (proxy, method, args) -> {
+              switch (method.getName()) {
+                case "getContentAsStream":
+                  return new ByteArrayInputStream(content);
+                case "getContent":
+                  return new String(content, StandardCharsets.UTF_8);
+                case "hashCode":
+                  return System.identityHashCode(proxy);
+                case "equals":
+                  return proxy == args[0];
+                case "toString":
+                  return "Message";
+                default:
+                  throw new UnsupportedOperationException(method.getName());
+              }
+            });
+  }
+
+  public static ExecutionContext newExecutionContext() {
+    return (ExecutionContext)
+        Proxy.newProxyInstance(
+            Fixtures.class.getClassLoader(),
+            new Class<?>[] {ExecutionContext.class},
+            (proxy, method, args) -> {
+              throw new UnsupportedOperationException(method.getName());
+            });
+  }
+}
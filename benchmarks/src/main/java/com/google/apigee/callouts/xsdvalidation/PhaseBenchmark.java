@@ -0,0 +1,110 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * The phases of a request taken one at a time, for the purchase-order fixture: the root peek, the
+ * DOM parse, and validation of a stream and of an already-parsed DOM with a pooled validator;
+ * and the whole of it through the {@link ValidationEngine}, without a message context.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PhaseBenchmark {
+  private byte[] document;
+  private Document dom;
+  private CompiledSchema compiled;
+  private final ValidationEngine engine = new ValidationEngine(false, true, null);
+
+  @Setup
+  public void setup() throws Exception {
+    document = Fixtures.readBytes("purchase-order.xml");
+    dom = DocumentBuilders.parse(XmlInput.of(stream()).toInputSource(), true);
+    compiled =
+        new CompiledSchema(
+            SchemaCache.compile(
+                XsdResource.of(Fixtures.readBytes("schema-for-purchase-order.xsd")), null, null),
+            "purchase-order",
+            ValidatorPool.Config.defaults());
+  }
+
+  private ByteArrayInputStream stream() {
+    return new ByteArrayInputStream(document);
+  }
+
+  private void validate(Source source) throws Exception {
+    ValidatorPool.Lease lease = compiled.validatorPool.checkout(new DefaultHandler());
+    try {
+      lease.validator.validate(source);
+    } finally {
+      compiled.validatorPool.checkin(lease);
+    }
+  }
+
+  @Benchmark
+  public Object peekRoot() throws Exception {
+    return RootElementPeeker.peek(XmlInput.of(stream())).root;
+  }
+
+  @Benchmark
+  public Document parseDeferredDom() throws Exception {
+    return DocumentBuilders.parse(XmlInput.of(stream()).toInputSource(), true);
+  }
+
+  @Benchmark
+  public Document parseDom() throws Exception {
+    return DocumentBuilders.parse(XmlInput.of(stream()).toInputSource(), false);
+  }
+
+  @Benchmark
+  public void validateStream() throws Exception {
+    Source source = ElementPathFilter.newSource(XmlInput.of(stream()).toInputSource(), null, null);
+    try {
+      validate(source);
+    } finally {
+      ElementPathFilter.of(source).release();
+    }
+  }
+
+  @Benchmark
+  public void validateParsedDom() throws Exception {
+    validate(new DOMSource(dom));
+  }
+
+  @Benchmark
+  public ValidationResult validateWithEngine() {
+    return engine.validate(compiled, XmlInput.of(stream()), null, null, 0);
+  }
+}
@@ -0,0 +1,108 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import javax.xml.validation.Schema;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The schema phases, which run on a cache miss: turning the configured XSDs into resources,
+ * fingerprinting them for the cache key, and compiling them. The xslt schema imports XSDs from
+ * www.w3.org, so the first compile needs network access; the fetched XSDs are cached after that.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SchemaBenchmark {
+
+  @Param({"purchase-order", "included-schema", "soap-envelope", "xslt"})
+  public String schema;
+
+  private byte[] mainBytes;
+  private String depName;
+  private byte[] depBytes;
+  private XsdResource main;
+  private Map<String, XsdResource> deps;
+  private Function<String, XsdResource> httpResolver;
+
+  @Setup
+  public void setup() {
+    switch (schema) {
+      case "purchase-order":
+        mainBytes = Fixtures.readBytes("schema-for-purchase-order.xsd");
+        break;
+      case "included-schema":
+        mainBytes = Fixtures.readBytes("w3c-include-parent.xsd");
+        depName = "w3c-include-child.xsd";
+        depBytes = Fixtures.readBytes(depName);
+        break;
+      case "soap-envelope":
+        mainBytes = Fixtures.readBytes("order-with-soap-fault.xsd");
+        depName = "soap-envelope-1.1.xsd";
+        depBytes = Fixtures.readBytes(depName);
+        break;
+      case "xslt":
+        mainBytes = Fixtures.readBytes("schema-for-xslt20.xsd");
+        break;
+      default:
+        throw new IllegalArgumentException(schema);
+    }
+    main = XsdResource.of(mainBytes);
+    deps = (depName == null) ? null : Collections.singletonMap(depName, XsdResource.of(depBytes));
+    UrlResourceCache urlResourceCache = new UrlResourceCache();
+    httpResolver = ref -> urlResourceCache.get(ref, UrlResourceCache.Settings.defaults());
+  }
+
+  @Benchmark
+  public String resolve() {
+    // what a request does with XSD content before the cache lookup
+    XsdResource m = XsdResource.of(mainBytes);
+    Map<String, XsdResource> d =
+        (depName == null) ? null : Collections.singletonMap(depName, XsdResource.of(depBytes));
+    return SchemaCache.fingerprint(m, d);
+  }
+
+  @Benchmark
+  public String fingerprint() {
+    return SchemaCache.fingerprint(main, deps);
+  }
+
+  @Benchmark
+  public Schema compile() throws Exception {
+    return SchemaCache.compile(main, deps, httpResolver);
+  }
+
+  @Benchmark
+  public Schema compileWithSharedGrammarPool() throws Exception {
+    return SharedGrammarPool.compile(main, deps, httpResolver);
+  }
+}
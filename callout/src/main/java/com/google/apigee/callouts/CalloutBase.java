@@ -37,6 +37,9 @@ public abstract class CalloutBase {
 
   protected Map<String, Object> properties; // read-only
   protected List<String> multivaluedProperties = Arrays.asList(new String[] {""});
+  // each single-valued, non-empty property, compiled once
+  private final Map<String, PropertyTemplate> templates;
+  private final boolean debug;
 
   public CalloutBase(Map properties) {
     // convert the untyped Map to a generic map
@@ -60,6 +63,18 @@ public abstract class CalloutBase {
       }
     }
     this.properties = Collections.unmodifiableMap(m);
+
+    Map<String, PropertyTemplate> t = new HashMap<String, PropertyTemplate>();
+    for (Map.Entry<String, Object> entry : this.properties.entrySet()) {
+      if (entry.getValue() instanceof String) {
+        String value = ((String) entry.getValue()).trim();
+        if (!value.equals("")) {
+          t.put(entry.getKey(), PropertyTemplate.compile(value));
+        }
+      }
+    }
+    this.templates = Collections.unmodifiableMap(t);
+    this.debug = getBooleanProperty("debug", false);
   }
 
   public abstract String getVarnamePrefix();
@@ -80,11 +95,20 @@ public abstract class CalloutBase {
   }
 
   protected boolean getDebug() {
-    String wantDebug = (String) this.properties.get("debug");
-    boolean debug = (wantDebug != null) && Boolean.parseBoolean(wantDebug);
     return debug;
   }
 
+  // For settings that cannot refer to variables; read once, at construction.
+  protected boolean getBooleanProperty(String propName, boolean defaultValue) {
+    Object value = this.properties.get(propName);
+    return (value == null) ? defaultValue : Boolean.parseBoolean(((String) value).trim());
+  }
+
+  // Returns the compiled value of the property, or null if the property is absent or empty.
+  protected PropertyTemplate getPropertyTemplate(String propName) {
+    return templates.get(propName);
+  }
+
   protected String normalizeString(String s) {
     s = s.replaceAll("^ +", "");
     s = s.replaceAll("(\r|\n) +", "\n");
@@ -93,18 +117,13 @@ public abstract class CalloutBase {
 
   protected String getSimpleRequiredProperty(String propName, MessageContext msgCtxt)
       throws Exception {
-    String value = (String) this.properties.get(propName);
-    if (value == null) {
+    PropertyTemplate template = templates.get(propName);
+    if (template == null) {
       throw new IllegalStateException(
           String.format("configuration error: %s resolves to an empty string", propName));
     }
-    value = value.trim();
-    if (value.equals("")) {
-      throw new IllegalStateException(
-          String.format("configuration error: %s resolves to an empty string", propName));
-    }
-    value = resolvePropertyValue(value, msgCtxt);
-    if (value == null || value.equals("")) {
+    String value = template.resolve(msgCtxt);
+    if (value == null) {
       throw new IllegalStateException(
           String.format("configuration error: %s resolves to an empty string", propName));
     }
@@ -113,40 +132,17 @@ public abstract class CalloutBase {
 
   protected String getSimpleOptionalProperty(String propName, MessageContext msgCtxt)
       throws Exception {
-    Object value = this.properties.get(propName);
-    if (value == null) {
-      return null;
-    }
-    String v = (String) value;
-    v = v.trim();
-    if (v.equals("")) {
-      return null;
-    }
-    v = resolvePropertyValue(v, msgCtxt);
-    if (v == null || v.equals("")) {
-      return null;
-    }
-    return v;
+    PropertyTemplate template = templates.get(propName);
+    return (template == null) ? null : template.resolve(msgCtxt);
   }
 
   // If the value of a property contains a pair of curlies,
   // eg, {apiproxy.name}, then "resolve" the value by de-referencing
   // the context variable whose name appears between the curlies.
   // If the variable name is not known, then it returns a null.
+  // For the value of a property, prefer getPropertyTemplate, which is compiled once.
   protected String resolvePropertyValue(String spec, MessageContext msgCtxt) {
-    Matcher matcher = variableReferencePattern.matcher(spec);
-    StringBuffer sb = new StringBuffer();
-    while (matcher.find()) {
-      matcher.appendReplacement(sb, "");
-      sb.append(matcher.group(1));
-      Object v = msgCtxt.getVariable(matcher.group(2));
-      if (v != null) {
-        sb.append((String) v);
-      }
-      sb.append(matcher.group(3));
-    }
-    matcher.appendTail(sb);
-    return (sb.length() > 0) ? sb.toString() : null;
+    return PropertyTemplate.compile(spec).resolve(msgCtxt);
   }
 
   protected static String getStackTraceAsString(Throwable t) {
@@ -0,0 +1,108 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts;
+
+import com.apigee.flow.message.MessageContext;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A property value, split once into literal text and references to context variables, such as
+ * "{request.header.id}". A reference is a name in curly braces that contains no braces or spaces;
+ * any other text is literal. Resolving a template does not use a regex, and a value with no
+ * references, or one that is a single reference, resolves without allocating.
+ */
+public final class PropertyTemplate {
+  // literals has one more element than variables: literal, variable, literal, ... literal
+  private final String[] literals;
+  private final String[] variables;
+
+  private PropertyTemplate(String[] literals, String[] variables) {
+    this.literals = literals;
+    this.variables = variables;
+  }
+
+  public static PropertyTemplate compile(String spec) {
+    List<String> literals = new ArrayList<String>();
+    List<String> variables = new ArrayList<String>();
+    int literalStart = 0;
+    int i = spec.indexOf('{');
+    while (i >= 0) {
+      int end = endOfReference(spec, i);
+      if (end > 0) {
+        literals.add(spec.substring(literalStart, i));
+        variables.add(spec.substring(i + 1, end));
+        literalStart = end + 1;
+        i = spec.indexOf('{', literalStart);
+      } else {
+        i = spec.indexOf('{', i + 1);
+      }
+    }
+    literals.add(spec.substring(literalStart));
+    return new PropertyTemplate(
+        literals.toArray(new String[literals.size()]),
+        variables.toArray(new String[variables.size()]));
+  }
+
+  // Returns the index of the closing brace of a reference that opens at start, or -1 if there
+  // is no valid reference there.
+  private static int endOfReference(String spec, int start) {
+    for (int j = start + 1; j < spec.length(); j++) {
+      char c = spec.charAt(j);
+      if (c == '}') {
+        return (j > start + 1) ? j : -1;
+      }
+      if (c == '{' || c == ' ') {
+        return -1;
+      }
+    }
+    return -1;
+  }
+
+  /** Whether the value has no variable references, and so resolves to the same text always. */
+  public boolean isStatic() {
+    return variables.length == 0;
+  }
+
+  /** The value of a static template. */
+  public String getLiteral() {
+    return literals[0];
+  }
+
+  /** Returns the value with each reference replaced, or null if that is empty. */
+  public String resolve(MessageContext msgCtxt) {
+    if (variables.length == 0) {
+      return emptyToNull(literals[0]);
+    }
+    if (variables.length == 1 && literals[0].isEmpty() && literals[1].isEmpty()) {
+      return emptyToNull((String) msgCtxt.getVariable(variables[0]));
+    }
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < variables.length; i++) {
+      sb.append(literals[i]);
+      Object v = msgCtxt.getVariable(variables[i]);
+      if (v != null) {
+        sb.append((String) v);
+      }
+    }
+    sb.append(literals[variables.length]);
+    return emptyToNull(sb.toString());
+  }
+
+  private static String emptyToNull(String s) {
+    return (s == null || s.isEmpty()) ? null : s;
+  }
+}
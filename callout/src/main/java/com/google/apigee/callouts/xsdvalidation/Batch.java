@@ -0,0 +1,224 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+
+/**
+ * Support for validating several documents in one request. The documents come from a collection,
+ * or from one string with a delimiter between documents. They are validated in parallel, on a
+ * JVM-wide pool with one thread per processor, and the results are reported as a compact JSON
+ * array, in the order of the documents.
+ */
+public class Batch {
+  private static final ForkJoinPool pool =
+      new ForkJoinPool(
+          Runtime.getRuntime().availableProcessors(),
+          p -> {
+            ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            t.setName("xsd-batch-" + t.getPoolIndex());
+            return t;
+          },
+          null,
+          false);
+
+  /**
+   * Returns the documents in a batch source: each element of a collection, or each part of a
+   * string, or of the bytes of a message body, between delimiters. Parts that hold only
+   * whitespace, such as one after a trailing delimiter, are skipped. Returns a null element for a
+   * collection element or a part that is not XML.
+   */
+  public static List<XmlInput> split(Object source, String delimiter) {
+    List<XmlInput> inputs = new ArrayList<XmlInput>();
+    if (source instanceof Collection) {
+      for (Object element : (Collection<?>) source) {
+        inputs.add((element instanceof CharSequence) ? XmlInput.of((CharSequence) element) : null);
+      }
+      return inputs;
+    }
+    if (delimiter == null) {
+      throw new IllegalStateException(
+          "configuration error: batch-delimiter is required when the source is not a collection");
+    }
+    if (source instanceof byte[]) {
+      return split((byte[]) source, delimiter.getBytes(StandardCharsets.UTF_8));
+    }
+    String s = source.toString();
+    int start = 0;
+    while (start <= s.length()) {
+      int end = s.indexOf(delimiter, start);
+      if (end < 0) {
+        end = s.length();
+      }
+      if (!isBlank(s, start, end)) {
+        inputs.add(XmlInput.of(s.substring(start, end)));
+      }
+      start = end + delimiter.length();
+    }
+    return inputs;
+  }
+
+  // Splits the bytes rather than decoded text, so that each document is parsed with the encoding
+  // it declares. The delimiter is matched as UTF-8, which is also ASCII for the usual delimiters.
+  private static List<XmlInput> split(byte[] bytes, byte[] delimiter) {
+    List<XmlInput> inputs = new ArrayList<XmlInput>();
+    int start = 0;
+    while (start <= bytes.length) {
+      int end = indexOf(bytes, delimiter, start);
+      if (end < 0) {
+        end = bytes.length;
+      }
+      // skip the whitespace after a delimiter, since an XML declaration must come first
+      int first = start;
+      while (first < end && isWhitespace(bytes[first])) {
+        first++;
+      }
+      if (first < end) {
+        inputs.add(
+            looksLikeXml(bytes[first])
+                ? XmlInput.of(new ByteArrayInputStream(bytes, first, end - first))
+                : null);
+      }
+      start = end + delimiter.length;
+    }
+    return inputs;
+  }
+
+  private static int indexOf(byte[] bytes, byte[] target, int from) {
+    outer:
+    for (int i = from; i <= bytes.length - target.length; i++) {
+      for (int j = 0; j < target.length; j++) {
+        if (bytes[i + j] != target[j]) {
+          continue outer;
+        }
+      }
+      return i;
+    }
+    return -1;
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+  }
+
+  // a document starts with markup, a byte order mark, or the zero byte of UTF-16 without one
+  private static boolean looksLikeXml(byte b) {
+    return b == '<' || b == (byte) 0xef || b == (byte) 0xfe || b == (byte) 0xff || b == 0;
+  }
+
+  private static boolean isBlank(String s, int start, int end) {
+    for (int i = start; i < end; i++) {
+      if (!Character.isWhitespace(s.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Runs the tasks on the pool, and waits for all of them. A single task runs on the calling
+   * thread.
+   */
+  public static List<ValidationResult> run(List<Callable<ValidationResult>> tasks)
+      throws Exception {
+    List<ValidationResult> items = new ArrayList<ValidationResult>(tasks.size());
+    if (tasks.size() == 1) {
+      items.add(tasks.get(0).call());
+      return items;
+    }
+    for (Future<ValidationResult> future : pool.invokeAll(tasks)) {
+      try {
+        items.add(future.get());
+      } catch (ExecutionException exc) {
+        items.add(ValidationResult.failed(String.valueOf(exc.getCause())));
+      }
+    }
+    return items;
+  }
+
+  /** Returns the results as a JSON array, with one object per document. */
+  public static String toJson(List<ValidationResult> items) {
+    StringBuilder sb = new StringBuilder("[");
+    for (int i = 0; i < items.size(); i++) {
+      ValidationResult item = items.get(i);
+      if (i > 0) {
+        sb.append(',');
+      }
+      sb.append("{\"index\":").append(i).append(",\"valid\":").append(item.valid);
+      if (item.failure != null) {
+        sb.append(",\"error\":");
+        appendString(sb, item.failure);
+      }
+      appendArray(sb, "errors", item.errors);
+      appendArray(sb, "paths", item.paths);
+      sb.append('}');
+    }
+    return sb.append(']').toString();
+  }
+
+  private static void appendArray(StringBuilder sb, String name, List<String> values) {
+    if (values == null || values.isEmpty()) {
+      return;
+    }
+    sb.append(",\"").append(name).append("\":[");
+    for (int i = 0; i < values.size(); i++) {
+      if (i > 0) {
+        sb.append(',');
+      }
+      appendString(sb, values.get(i));
+    }
+    sb.append(']');
+  }
+
+  private static void appendString(StringBuilder sb, String s) {
+    sb.append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+        case '"':
+          sb.append("\\\"");
+          break;
+        case '\\':
+          sb.append("\\\\");
+          break;
+        case '\n':
+          sb.append("\\n");
+          break;
+        case '\r':
+          sb.append("\\r");
+          break;
+        case '\t':
+          sb.append("\\t");
+          break;
+        default:
+          if (c < 0x20) {
+            sb.append(String.format("\\u%04x", (int) c));
+          } else {
+            sb.append(c);
+          }
+      }
+    }
+    sb.append('"');
+  }
+}
@@ -0,0 +1,88 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+/**
+ * The byte budgets of the JVM-wide caches, and the weights of their entries. Each budget is a
+ * percentage of the maximum heap, with a floor, so the caches stay in proportion to the memory of
+ * the runtime. The percentages can be set with system properties:
+ *
+ * <ul>
+ *   <li>xsd.cache.resource-heap-percent: for each cache of XSD content. Default: 2.
+ *   <li>xsd.cache.schema-heap-percent: for the compiled schemas, and for the shared grammars.
+ *       Default: 10.
+ * </ul>
+ *
+ * <p>The weight of an entry is an estimate of the heap it holds, including its key. The key of an
+ * inline XSD is the XSD itself, so ignoring keys would let a stream of distinct inline XSDs grow
+ * the heap without limit.
+ */
+public class CacheBudget {
+  public static final String RESOURCE_PERCENT_PROPERTY = "xsd.cache.resource-heap-percent";
+  public static final String SCHEMA_PERCENT_PROPERTY = "xsd.cache.schema-heap-percent";
+  private static final double DEFAULT_RESOURCE_PERCENT = 2;
+  private static final double DEFAULT_SCHEMA_PERCENT = 10;
+  private static final long MIN_RESOURCE_BYTES = 4L * 1024 * 1024;
+  private static final long MIN_SCHEMA_BYTES = 16L * 1024 * 1024;
+
+  // the objects, headers and digest that each entry holds besides its content
+  private static final int ENTRY_OVERHEAD_BYTES = 256;
+  // Measured with the JDK's Xerces: a compiled schema holds a fixed 10-20 KB, plus up to several
+  // times the size of its source, depending on how much of the source is annotation.
+  private static final int SCHEMA_BASE_BYTES = 16 * 1024;
+  private static final int SCHEMA_BYTES_PER_SOURCE_BYTE = 4;
+
+  /** The budget for each cache of XSD content, in bytes. */
+  public static final long RESOURCE_BYTES =
+      budget(RESOURCE_PERCENT_PROPERTY, DEFAULT_RESOURCE_PERCENT, MIN_RESOURCE_BYTES);
+
+  /** The budget for compiled schemas, and for shared grammars, in bytes. */
+  public static final long SCHEMA_BYTES =
+      budget(SCHEMA_PERCENT_PROPERTY, DEFAULT_SCHEMA_PERCENT, MIN_SCHEMA_BYTES);
+
+  private CacheBudget() {}
+
+  static long budget(String property, double defaultPercent, long min) {
+    double percent = defaultPercent;
+    String value = System.getProperty(property);
+    if (value != null) {
+      try {
+        percent = Double.parseDouble(value);
+      } catch (NumberFormatException exc) {
+        // keep the default
+      }
+      if (!(percent > 0 && percent <= 100)) {
+        percent = defaultPercent;
+      }
+    }
+    return Math.max(min, (long) (Runtime.getRuntime().maxMemory() * percent / 100));
+  }
+
+  /** The weight of an entry with a string key and content of the given length, in bytes. */
+  public static int weigh(String key, int contentBytes) {
+    return saturate(ENTRY_OVERHEAD_BYTES + 2L * key.length() + contentBytes);
+  }
+
+  /** The weight of a schema compiled from sources of the given total length, in bytes. */
+  public static int weighSchema(long sourceBytes) {
+    return saturate(
+        SCHEMA_BASE_BYTES
+            + SCHEMA_BYTES_PER_SOURCE_BYTE * Math.min(sourceBytes, (long) Integer.MAX_VALUE));
+  }
+
+  private static int saturate(long weight) {
+    return (int) Math.min(Integer.MAX_VALUE, weight);
+  }
+}
@@ -0,0 +1,92 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Statistics for the JVM-wide caches, for diagnostics. */
+public class CacheDiagnostics {
+  private CacheDiagnostics() {}
+
+  /** A snapshot of the statistics of one cache. */
+  public static class Stats {
+    public final long hits;
+    public final long misses;
+    // the entries loaded or compiled on a miss, and the time spent doing so
+    public final long loads;
+    public final long loadNanos;
+    public final long evictions;
+    public final long entries;
+    // the total weight of the entries, an estimate of the heap they hold
+    public final long bytes;
+
+    Stats(
+        long hits,
+        long misses,
+        long loads,
+        long loadNanos,
+        long evictions,
+        long entries,
+        long bytes) {
+      this.hits = hits;
+      this.misses = misses;
+      this.loads = loads;
+      this.loadNanos = loadNanos;
+      this.evictions = evictions;
+      this.entries = entries;
+      this.bytes = bytes;
+    }
+
+    /** The statistics by name, in a fixed order, as they are set in flow variables. */
+    public Map<String, Long> toMap() {
+      Map<String, Long> map = new LinkedHashMap<String, Long>();
+      map.put("hits", hits);
+      map.put("misses", misses);
+      map.put("loads", loads);
+      map.put("load_time_ns", loadNanos);
+      map.put("evictions", evictions);
+      map.put("entries", entries);
+      map.put("bytes", bytes);
+      return map;
+    }
+  }
+
+  /** The statistics of a cache that has never been used. */
+  static Stats empty() {
+    return new Stats(0, 0, 0, 0, 0, 0, 0);
+  }
+
+  /** The statistics of a cache that records them, with the loads it recorded. */
+  static Stats of(Cache<?, ?> cache) {
+    CacheStats stats = cache.stats();
+    return of(cache, stats.hitCount(), stats.missCount(), stats.loadCount(), stats.totalLoadTime());
+  }
+
+  /** The statistics of a cache, with hits, misses and loads that were counted elsewhere. */
+  static Stats of(Cache<?, ?> cache, long hits, long misses, long loads, long loadNanos) {
+    cache.cleanUp();
+    return new Stats(
+        hits,
+        misses,
+        loads,
+        loadNanos,
+        cache.stats().evictionCount(),
+        cache.estimatedSize(),
+        cache.policy().eviction().map(e -> e.weightedSize().orElse(0)).orElse(0L));
+  }
+}
@@ -0,0 +1,90 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+import java.io.StringReader;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import org.xml.sax.helpers.DefaultHandler;
+
+/** A compiled Schema, along with the pool of Validators created from it. */
+public class CompiledSchema {
+  public final Schema schema;
+  public final String fingerprint;
+  public final ValidatorPool validatorPool;
+  // an estimate of the heap the compiled schema holds, for weighing it in the cache
+  public final int estimatedBytes;
+  // the digests of the XSDs the schema was compiled from, for invalidating it when one changes
+  public final Set<String> sourceDigests;
+  // whether the compile retrieved any of the sources via http(s), for a schemaLocation
+  public final boolean fetchedSources;
+
+  public CompiledSchema(Schema schema, String fingerprint, ValidatorPool.Config poolConfig) {
+    this(schema, fingerprint, poolConfig, Collections.emptyList());
+  }
+
+  /** The sources are the XSDs the schema was compiled from: the main XSD and its dependencies. */
+  public CompiledSchema(
+      Schema schema,
+      String fingerprint,
+      ValidatorPool.Config poolConfig,
+      Collection<XsdResource> sources) {
+    this(schema, fingerprint, poolConfig, sources, false);
+  }
+
+  /** As above; fetchedSources is true if the compile retrieved any of the sources via http(s). */
+  public CompiledSchema(
+      Schema schema,
+      String fingerprint,
+      ValidatorPool.Config poolConfig,
+      Collection<XsdResource> sources,
+      boolean fetchedSources) {
+    this.schema = schema;
+    this.fetchedSources = fetchedSources;
+    this.fingerprint = fingerprint;
+    this.validatorPool = new ValidatorPool(schema, poolConfig);
+    long sourceBytes = 0;
+    Set<String> digests = new HashSet<String>();
+    for (XsdResource source : sources) {
+      sourceBytes += source.length();
+      digests.add(source.getDigest());
+    }
+    this.estimatedBytes = CacheBudget.weighSchema(sourceBytes);
+    this.sourceDigests = Collections.unmodifiableSet(digests);
+  }
+
+  /**
+   * Runs one throwaway validation, so that the validator classes are loaded and a pooled
+   * Validator is ready before the first request arrives.
+   */
+  public void warmUp() {
+    ValidatorPool.Lease lease = null;
+    try {
+      // DefaultHandler ignores validity errors
+      lease = validatorPool.checkout(new DefaultHandler());
+      lease.validator.validate(new StreamSource(new StringReader("<warm-up/>")));
+    } catch (Exception exc) {
+      // the warm-up document need not be valid
+    } finally {
+      if (lease != null) {
+        validatorPool.checkin(lease);
+      }
+    }
+  }
+}
@@ -1,26 +1,30 @@
 package com.google.apigee.callouts.xsdvalidation;
 
-import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.io.Reader;
-import java.nio.charset.StandardCharsets;
 import java.util.Map;
 import java.util.function.Function;
 import org.w3c.dom.ls.LSInput;
 import org.w3c.dom.ls.LSResourceResolver;
 
 public class CustomResourceResolver implements LSResourceResolver {
-  private final Map<String, String> knownResources;
-  private final Function<String,String> httpRefResolver;
+  private final Map<String, XsdResource> knownResources;
+  private final Function<String, XsdResource> httpRefResolver;
 
   @SuppressWarnings("unchecked")
-  public CustomResourceResolver(Map<String, String> map,
-                                Function<String,String> httpRefResolver) {
+  public CustomResourceResolver(Map<String, XsdResource> map,
+                                Function<String, XsdResource> httpRefResolver) {
     super();
     this.knownResources = map;
     this.httpRefResolver = httpRefResolver;
   }
 
+  private XsdResource lookup(String systemId) {
+    if (systemId == null) return null;
+    if (systemId.startsWith("http")) return httpRefResolver.apply(systemId);
+    return (knownResources != null) ? knownResources.get(systemId) : null;
+  }
+
   /*
    * (non-Javadoc)
    *
@@ -37,22 +41,15 @@ public class CustomResourceResolver implements LSResourceResolver {
     //                   baseURI
     //                   );
 
+    final XsdResource resource = lookup(systemId);
+
     return new LSInput() {
       public String getBaseURI() {
         return null;
       }
 
       public InputStream getByteStream() {
-        if (systemId.startsWith("http"))
-          return new ByteArrayInputStream(httpRefResolver.apply(systemId)
-                                          .getBytes(StandardCharsets.UTF_8));
-
-        if (knownResources != null && knownResources.containsKey(systemId))
-          return new ByteArrayInputStream(
-              knownResources.get(systemId).getBytes(StandardCharsets.UTF_8));
-
-
-        return null;
+        return (resource != null) ? resource.openStream() : null;
       }
 
       public boolean getCertifiedText() {
@@ -64,7 +61,7 @@ public class CustomResourceResolver implements LSResourceResolver {
       }
 
       public String getEncoding() {
-        return null;
+        return (resource != null) ? resource.getEncoding() : null;
       }
 
       public String getPublicId() {
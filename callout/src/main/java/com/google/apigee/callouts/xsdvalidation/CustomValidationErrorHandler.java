@@ -22,6 +22,7 @@ import javax.xml.validation.Validator;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
 
 public class CustomValidationErrorHandler implements ErrorHandler {
@@ -34,6 +35,11 @@ public class CustomValidationErrorHandler implements ErrorHandler {
   List<String> exceptionList;
   List<String> pathList;
   Validator validator;
+  // set in streaming mode, where there is no DOM to get the failing element from
+  ElementPathFilter pathFilter;
+  // the number of errors after which validation stops; 0 means no limit
+  int maxErrors;
+  boolean stoppedEarly;
 
   private static String varName(String s) {
     return _prefix + s;
@@ -50,14 +56,37 @@ public class CustomValidationErrorHandler implements ErrorHandler {
     _debug = debug;
   }
 
-  public void error(SAXParseException exception) {
+  public CustomValidationErrorHandler(MessageContext msgCtxt, boolean debug) {
+    this(msgCtxt, null, debug);
+  }
+
+  public CustomValidationErrorHandler(MessageContext msgCtxt, boolean debug, int maxErrors) {
+    this(msgCtxt, null, debug);
+    this.maxErrors = maxErrors;
+  }
+
+  // The validator is leased from a pool after the handler is created.
+  public void setValidator(Validator validator) {
+    this.validator = validator;
+  }
+
+  public void setPathFilter(ElementPathFilter pathFilter) {
+    this.pathFilter = pathFilter;
+  }
+
+  public void error(SAXParseException exception) throws SAXException {
     _errorCount++;
     if (_debug) {
       System.out.printf("Error\n");
       exception.printStackTrace();
     }
-    _msgCtxt.setVariable(varName("error_" + _errorCount), "Error:" + exception.toString());
+    setVariable("error_" + _errorCount, "Error:" + exception.toString());
     addException(exception);
+    if (maxErrors > 0 && _errorCount >= maxErrors) {
+      // Throwing from the handler is the only way to make the validator stop reading.
+      stoppedEarly = true;
+      throw new ErrorLimitReachedException(_errorCount);
+    }
   }
 
   public void fatalError(SAXParseException exception) {
@@ -66,7 +95,7 @@ public class CustomValidationErrorHandler implements ErrorHandler {
       System.out.printf("Fatal\n");
       exception.printStackTrace();
     }
-    _msgCtxt.setVariable(varName("error_" + _errorCount), "Fatal Error:" + exception.toString());
+    setVariable("error_" + _errorCount, "Fatal Error:" + exception.toString());
     addException(exception);
   }
 
@@ -76,10 +105,18 @@ public class CustomValidationErrorHandler implements ErrorHandler {
       System.out.printf("Warning\n");
       exception.printStackTrace();
     }
-    _msgCtxt.setVariable(varName("warning_" + _warnCount), "Warning:" + exception.toString());
+    setVariable("warning_" + _warnCount, "Warning:" + exception.toString());
     addException(exception);
   }
 
+  // A handler for one document of a batch has no message context; its errors are reported with
+  // the batch results.
+  private void setVariable(String name, String value) {
+    if (_msgCtxt != null) {
+      _msgCtxt.setVariable(varName(name), value);
+    }
+  }
+
   private static String getFullPathOfElement(Node element) {
     String path = null;
     Node node = element;
@@ -96,7 +133,12 @@ public class CustomValidationErrorHandler implements ErrorHandler {
     if (this.exceptionList == null) this.exceptionList = new ArrayList<>(); // lazy create
     if (exceptionList.size() < RECORDED_EXCEPTION_LIMIT) this.exceptionList.add(ex.toString());
     if (this.pathList == null) this.pathList = new ArrayList<>(); // lazy create
-    if (pathList.size() < RECORDED_EXCEPTION_LIMIT) {
+    if (pathList.size() < RECORDED_EXCEPTION_LIMIT && pathFilter != null) {
+      String path = pathFilter.getCurrentPath();
+      if (path != null) {
+        this.pathList.add(path);
+      }
+    } else if (pathList.size() < RECORDED_EXCEPTION_LIMIT) {
       try {
         Element curElement =
             (Element)
@@ -119,6 +161,25 @@ public class CustomValidationErrorHandler implements ErrorHandler {
     return this._errorCount;
   }
 
+  public int getWarningCount() {
+    return this._warnCount;
+  }
+
+  /** True if validation stopped because the error limit was reached. */
+  public boolean stoppedEarly() {
+    return this.stoppedEarly;
+  }
+
+  /** The recorded error messages, or null if there are none. */
+  public List<String> getExceptionList() {
+    return this.exceptionList;
+  }
+
+  /** The paths of the failing elements, or null if there are none. */
+  public List<String> getPathList() {
+    return this.pathList;
+  }
+
   public String getPaths() {
     if (this.pathList == null) return null;
     LineCounter lc = new LineCounter();
@@ -131,6 +192,13 @@ public class CustomValidationErrorHandler implements ErrorHandler {
     return (String) exceptionList.stream().map(lc::toIndexed).collect(Collectors.joining("\n"));
   }
 
+  /** Thrown to stop validation when the configured number of errors has been seen. */
+  public static class ErrorLimitReachedException extends SAXException {
+    ErrorLimitReachedException(int errorCount) {
+      super("validation stopped after " + errorCount + " error(s)");
+    }
+  }
+
   static class LineCounter {
     int n = 1;
 
@@ -0,0 +1,175 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+import java.io.IOException;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.FactoryConfigurationError;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.transform.ErrorListener;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.TransformerFactoryConfigurationError;
+import javax.xml.transform.dom.DOMResult;
+import javax.xml.transform.sax.SAXSource;
+import org.w3c.dom.Document;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Thread-confined, preconfigured DocumentBuilder instances for the use-dom-source mode. A
+ * DocumentBuilder is not thread-safe, but it can be reset and reused, which avoids the JAXP
+ * factory lookup and configuration on every request.
+ *
+ * <p>A DocumentBuilder offers no hook for counting elements as they are parsed. When there are
+ * structural payload limits, the document is instead parsed with SAX, through the filter that
+ * enforces the limits, and the DOM is built from the SAX events.
+ */
+public class DocumentBuilders {
+  private static final String EXTERNAL_GENERAL_ENTITIES =
+      "http://xml.org/sax/features/external-general-entities";
+  private static final String EXTERNAL_PARAMETER_ENTITIES =
+      "http://xml.org/sax/features/external-parameter-entities";
+  private static final String LOAD_EXTERNAL_DTD =
+      "http://apache.org/xml/features/nonvalidating/load-external-dtd";
+  private static final String JDK_DOCUMENT_BUILDER_FACTORY =
+      "com.sun.org.apache.xerces.internal.jaxp.DocumentBuilderFactoryImpl";
+  private static final String DEFER_NODE_EXPANSION =
+      "http://apache.org/xml/features/dom/defer-node-expansion";
+  private static final String JDK_TRANSFORMER_FACTORY =
+      "com.sun.org.apache.xalan.internal.xsltc.trax.TransformerFactoryImpl";
+
+  private static final ThreadLocal<DocumentBuilder> deferred =
+      ThreadLocal.withInitial(() -> newDocumentBuilder(true));
+  private static final ThreadLocal<DocumentBuilder> nonDeferred =
+      ThreadLocal.withInitial(() -> newDocumentBuilder(false));
+
+  // identity transformers, which build a DOM from SAX events
+  private static final ThreadLocal<Transformer> domBuilders =
+      ThreadLocal.withInitial(DocumentBuilders::newDomBuilder);
+
+  private static final ErrorHandler quietErrorHandler = new DefaultHandler();
+
+  // the default listener prints each error to stderr before it is thrown
+  private static final ErrorListener throwingErrorListener =
+      new ErrorListener() {
+        public void warning(TransformerException exc) {}
+
+        public void error(TransformerException exc) throws TransformerException {
+          throw exc;
+        }
+
+        public void fatalError(TransformerException exc) throws TransformerException {
+          throw exc;
+        }
+      };
+
+  private DocumentBuilders() {}
+
+  private static DocumentBuilder newDocumentBuilder(boolean deferNodeExpansion) {
+    try {
+      DocumentBuilderFactory factory = newDocumentBuilderFactory();
+      factory.setFeature(EXTERNAL_PARAMETER_ENTITIES, false);
+      factory.setFeature(EXTERNAL_GENERAL_ENTITIES, false);
+      factory.setFeature(LOAD_EXTERNAL_DTD, false);
+      factory.setFeature(DEFER_NODE_EXPANSION, deferNodeExpansion);
+      factory.setNamespaceAware(true);
+      return factory.newDocumentBuilder();
+    } catch (ParserConfigurationException exc) {
+      throw new IllegalStateException(exc);
+    }
+  }
+
+  private static Transformer newDomBuilder() {
+    TransformerFactory factory;
+    try {
+      factory = TransformerFactory.newInstance(JDK_TRANSFORMER_FACTORY, null);
+    } catch (TransformerFactoryConfigurationError exc) {
+      factory = TransformerFactory.newInstance();
+    }
+    try {
+      return factory.newTransformer();
+    } catch (TransformerConfigurationException exc) {
+      throw new IllegalStateException(exc);
+    }
+  }
+
+  // prefer the JDK's built-in parser over any other JAXP provider on the classpath
+  private static DocumentBuilderFactory newDocumentBuilderFactory() {
+    try {
+      return DocumentBuilderFactory.newInstance(JDK_DOCUMENT_BUILDER_FACTORY, null);
+    } catch (FactoryConfigurationError exc) {
+      return DocumentBuilderFactory.newInstance();
+    }
+  }
+
+  /**
+   * Parses the input into a DOM, using the builder that belongs to the current thread. With
+   * deferred node expansion, the parser builds a compact representation and creates node objects
+   * only as they are visited. Validation visits every node, so for small documents the
+   * non-deferred builder can be cheaper.
+   */
+  public static Document parse(InputSource in, boolean deferNodeExpansion)
+      throws SAXException, IOException {
+    DocumentBuilder builder = (deferNodeExpansion) ? deferred.get() : nonDeferred.get();
+    try {
+      // without a handler, the builder prints each parse error to stderr before throwing it
+      builder.setErrorHandler(quietErrorHandler);
+      return builder.parse(in);
+    } finally {
+      builder.reset();
+    }
+  }
+
+  /**
+   * Parses the input into a DOM, enforcing the structural payload limits as it is parsed, so that
+   * a document that crosses a limit is rejected before it is fully built.
+   */
+  public static Document parse(InputSource in, PayloadLimits limits)
+      throws SAXException, IOException {
+    SAXParser parser = ElementPathFilter.threadParser();
+    Transformer transformer = domBuilders.get();
+    try {
+      XMLReader reader = limits.apply(parser.getXMLReader());
+      reader.setErrorHandler(quietErrorHandler);
+      // reset() restores the default listener, so set this one for each parse
+      transformer.setErrorListener(throwingErrorListener);
+      DOMResult result = new DOMResult();
+      transformer.transform(new SAXSource(reader, in), result);
+      return (Document) result.getNode();
+    } catch (TransformerException exc) {
+      // report what the parser reported, as the DocumentBuilder would
+      for (Throwable cause = exc.getCause(); cause != null; cause = cause.getCause()) {
+        if (cause instanceof SAXException) {
+          throw (SAXException) cause;
+        }
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        }
+      }
+      throw new SAXException(exc);
+    } finally {
+      parser.reset();
+      transformer.reset();
+    }
+  }
+}
@@ -0,0 +1,196 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.parsers.FactoryConfigurationError;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.Source;
+import javax.xml.transform.sax.SAXSource;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLFilter;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * A SAX filter that sits between the parser and the validator in streaming mode, and tracks the
+ * path to the current element, so that the error handler can report where an error occurred
+ * without a DOM. Each step of the path carries the 1-based position of the element among its
+ * siblings of the same name, for example {@code #document/purchaseOrder[1]/items[1]/item[2]}. The
+ * path string is built only when it is requested.
+ *
+ * <p>The underlying SAX parsers are thread-confined and reused, as in {@link DocumentBuilders}.
+ */
+public class ElementPathFilter extends XMLFilterImpl {
+  private static final String EXTERNAL_GENERAL_ENTITIES =
+      "http://xml.org/sax/features/external-general-entities";
+  private static final String EXTERNAL_PARAMETER_ENTITIES =
+      "http://xml.org/sax/features/external-parameter-entities";
+  private static final String LOAD_EXTERNAL_DTD =
+      "http://apache.org/xml/features/nonvalidating/load-external-dtd";
+  private static final String JDK_SAX_PARSER_FACTORY =
+      "com.sun.org.apache.xerces.internal.jaxp.SAXParserFactoryImpl";
+
+  private static final ThreadLocal<SAXParser> parsers =
+      ThreadLocal.withInitial(ElementPathFilter::newSAXParser);
+
+  static class Frame {
+    final String name;
+    final int position;
+    // the number of children seen so far, by name; created when the first child appears
+    Map<String, int[]> childCounts;
+
+    Frame(String name, int position) {
+      this.name = name;
+      this.position = position;
+    }
+
+    int nextPosition(String childName) {
+      if (childCounts == null) {
+        childCounts = new HashMap<String, int[]>();
+      }
+      int[] count = childCounts.get(childName);
+      if (count == null) {
+        count = new int[1];
+        childCounts.put(childName, count);
+      }
+      return ++count[0];
+    }
+  }
+
+  private final SAXParser parser;
+  private final List<Frame> stack = new ArrayList<Frame>();
+  private final Frame document = new Frame("#document", 0);
+
+  private ElementPathFilter(SAXParser parser, XMLReader parent) {
+    super(parent);
+    this.parser = parser;
+  }
+
+  private static SAXParser newSAXParser() {
+    try {
+      SAXParserFactory factory = newSAXParserFactory();
+      factory.setFeature(EXTERNAL_PARAMETER_ENTITIES, false);
+      factory.setFeature(EXTERNAL_GENERAL_ENTITIES, false);
+      factory.setFeature(LOAD_EXTERNAL_DTD, false);
+      factory.setNamespaceAware(true);
+      return factory.newSAXParser();
+    } catch (ParserConfigurationException | SAXException exc) {
+      throw new IllegalStateException(exc);
+    }
+  }
+
+  // prefer the JDK's built-in parser over any other JAXP provider on the classpath
+  private static SAXParserFactory newSAXParserFactory() {
+    try {
+      return SAXParserFactory.newInstance(JDK_SAX_PARSER_FACTORY, null);
+    } catch (FactoryConfigurationError exc) {
+      return SAXParserFactory.newInstance();
+    }
+  }
+
+  /**
+   * Returns a source that parses the input with the current thread's parser, through a filter.
+   * The payload limits, if any, are enforced ahead of this filter. If there is a subtree path, only
+   * the selected element is passed on; the paths still start at the document.
+   */
+  public static SAXSource newSource(InputSource in, PayloadLimits limits, SubtreePath subtree)
+      throws SAXException {
+    SAXParser parser = parsers.get();
+    parser.reset();
+    XMLReader reader = parser.getXMLReader();
+    if (limits != null) {
+      reader = limits.apply(reader);
+    }
+    reader = new ElementPathFilter(parser, reader);
+    if (subtree != null) {
+      reader = subtree.newFilter(reader);
+    }
+    return new SAXSource(reader, in);
+  }
+
+  /**
+   * Returns the current thread's parser, reset. The caller must reset it again when done, as
+   * {@link #release} does.
+   */
+  static SAXParser threadParser() {
+    SAXParser parser = parsers.get();
+    parser.reset();
+    return parser;
+  }
+
+  /** Returns the filter that the source reads through, or null if there is none. */
+  public static ElementPathFilter of(Source source) {
+    if (!(source instanceof SAXSource)) {
+      return null;
+    }
+    XMLReader reader = ((SAXSource) source).getXMLReader();
+    while (reader instanceof XMLFilter) {
+      if (reader instanceof ElementPathFilter) {
+        return (ElementPathFilter) reader;
+      }
+      reader = ((XMLFilter) reader).getParent();
+    }
+    return null;
+  }
+
+  /** Detaches the handlers of this request from the parser, which stays with the thread. */
+  public void release() {
+    parser.reset();
+  }
+
+  @Override
+  public void startDocument() throws SAXException {
+    stack.clear();
+    document.childCounts = null;
+    super.startDocument();
+  }
+
+  @Override
+  public void startElement(String uri, String localName, String qName, Attributes atts)
+      throws SAXException {
+    String name = (qName != null && !qName.equals("")) ? qName : localName;
+    Frame parent = stack.isEmpty() ? document : stack.get(stack.size() - 1);
+    stack.add(new Frame(name, parent.nextPosition(name)));
+    // the validator checks the element after it is on the stack, so errors see it in the path
+    super.startElement(uri, localName, qName, atts);
+  }
+
+  @Override
+  public void endElement(String uri, String localName, String qName) throws SAXException {
+    // content errors are reported at the end of the element, so pop afterwards
+    super.endElement(uri, localName, qName);
+    stack.remove(stack.size() - 1);
+  }
+
+  /** The path to the element currently being validated, or null if outside the root element. */
+  public String getCurrentPath() {
+    if (stack.isEmpty()) {
+      return null;
+    }
+    StringBuilder sb = new StringBuilder(document.name);
+    for (Frame frame : stack) {
+      sb.append('/').append(frame.name).append('[').append(frame.position).append(']');
+    }
+    return sb.toString();
+  }
+}
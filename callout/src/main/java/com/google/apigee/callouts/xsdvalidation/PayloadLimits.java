@@ -0,0 +1,200 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * Limits on the size and shape of the document to validate, enforced while the document is read,
+ * so that an oversized or deeply nested payload is rejected as soon as it crosses a limit. The
+ * size is counted on the input stream; the depth, element count and attributes per element are
+ * counted by a SAX filter. A limit of zero means no limit.
+ *
+ * <p>An instance holds the counters for one request.
+ */
+public class PayloadLimits {
+  public static final String MAX_BYTES = "max-bytes";
+  public static final String MAX_DEPTH = "max-depth";
+  public static final String MAX_ELEMENTS = "max-elements";
+  public static final String MAX_ATTRIBUTES = "max-attributes";
+
+  private final long maxBytes;
+  private final int maxDepth;
+  private final long maxElements;
+  private final int maxAttributes;
+
+  // the name of the limit that was crossed, if any
+  private volatile String exceeded;
+
+  public PayloadLimits(long maxBytes, int maxDepth, long maxElements, int maxAttributes) {
+    this.maxBytes = maxBytes;
+    this.maxDepth = maxDepth;
+    this.maxElements = maxElements;
+    this.maxAttributes = maxAttributes;
+  }
+
+  /** Returns limits with the same settings, and fresh counters, for another document. */
+  public PayloadLimits copy() {
+    return new PayloadLimits(maxBytes, maxDepth, maxElements, maxAttributes);
+  }
+
+  public boolean hasStructuralLimits() {
+    return maxDepth > 0 || maxElements > 0 || maxAttributes > 0;
+  }
+
+  /** The settings, for comparing the limits of two requests; not the counters. */
+  @Override
+  public String toString() {
+    return String.format(
+        "%s=%d,%s=%d,%s=%d,%s=%d",
+        MAX_BYTES, maxBytes, MAX_DEPTH, maxDepth, MAX_ELEMENTS, maxElements, MAX_ATTRIBUTES,
+        maxAttributes);
+  }
+
+  /** The name of the limit that was crossed, or null if none was. */
+  public String getExceeded() {
+    return exceeded;
+  }
+
+  public String describeExceeded() {
+    if (exceeded == null) {
+      return null;
+    }
+    long limit =
+        exceeded.equals(MAX_BYTES)
+            ? maxBytes
+            : exceeded.equals(MAX_DEPTH)
+                ? maxDepth
+                : exceeded.equals(MAX_ELEMENTS) ? maxElements : maxAttributes;
+    return String.format("payload limit exceeded: %s %d", exceeded, limit);
+  }
+
+  /**
+   * Applies the size limit to the input. The size of character input is known up front, so it is
+   * checked right away, counting characters; a stream is counted in bytes as it is read.
+   */
+  public XmlInput apply(XmlInput in) throws IOException {
+    if (maxBytes <= 0) {
+      return in;
+    }
+    if (in.isRepeatable()) {
+      if (in.length() > maxBytes) {
+        throw exceed(MAX_BYTES);
+      }
+      return in;
+    }
+    return XmlInput.of(new CountingInputStream(in.getStream()));
+  }
+
+  /** Returns a reader that enforces the structural limits, or the parent if there are none. */
+  public XMLReader apply(XMLReader parent) {
+    return hasStructuralLimits() ? new LimitingFilter(parent) : parent;
+  }
+
+  private LimitExceededException exceed(String limit) {
+    exceeded = limit;
+    return new LimitExceededException(describeExceeded());
+  }
+
+  /** Thrown from the input stream when the size limit is crossed. */
+  public static class LimitExceededException extends IOException {
+    LimitExceededException(String message) {
+      super(message);
+    }
+  }
+
+  class CountingInputStream extends FilterInputStream {
+    private long count;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    private void add(long n) throws IOException {
+      count += n;
+      if (count > maxBytes) {
+        throw exceed(MAX_BYTES);
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) {
+        add(1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0) {
+        add(n);
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      add(skipped);
+      return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+  }
+
+  class LimitingFilter extends XMLFilterImpl {
+    private int depth;
+    private long elements;
+
+    LimitingFilter(XMLReader parent) {
+      super(parent);
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts)
+        throws SAXException {
+      depth++;
+      elements++;
+      if (maxDepth > 0 && depth > maxDepth) {
+        throw new SAXException(exceed(MAX_DEPTH));
+      }
+      if (maxElements > 0 && elements > maxElements) {
+        throw new SAXException(exceed(MAX_ELEMENTS));
+      }
+      if (maxAttributes > 0 && atts.getLength() > maxAttributes) {
+        throw new SAXException(exceed(MAX_ATTRIBUTES));
+      }
+      super.startElement(uri, localName, qName, atts);
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+      depth--;
+      super.endElement(uri, localName, qName);
+    }
+  }
+}
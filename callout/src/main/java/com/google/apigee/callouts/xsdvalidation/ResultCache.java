@@ -0,0 +1,142 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the outcome of validating small documents, so that a document that is identical to
+ * one seen recently is not parsed or validated again. An entry is keyed by the schema
+ * fingerprint, the request settings that affect the outcome, and the content of the document.
+ * The key carries a 64-bit hash of the content for lookup, and the content itself, so two
+ * documents match only if they are identical.
+ *
+ * <p>The cache is bounded by the number of entries and by the time since each was written; only
+ * documents up to a configured size are eligible, which bounds the memory each entry holds.
+ */
+public class ResultCache {
+  public static final long DEFAULT_SIZE = 1000;
+  public static final long DEFAULT_TTL_SECONDS = 300;
+  public static final int DEFAULT_MAX_PAYLOAD_BYTES = 16 * 1024;
+
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private final Cache<Key, Map<String, Object>> cache;
+  private final int maxPayloadBytes;
+
+  public ResultCache(long size, long ttlSeconds, int maxPayloadBytes) {
+    this.cache =
+        Caffeine.newBuilder()
+            .maximumSize(size)
+            .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+            .build();
+    this.maxPayloadBytes = maxPayloadBytes;
+  }
+
+  static class Key {
+    final String fingerprint;
+    final String settings;
+    // a String for character input, a byte[] for a stream
+    final Object content;
+    final long hash;
+
+    Key(String fingerprint, String settings, Object content, long hash) {
+      this.fingerprint = fingerprint;
+      this.settings = settings;
+      this.content = content;
+      this.hash = hash;
+    }
+
+    @Override
+    public int hashCode() {
+      return (int) (hash ^ (hash >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      if (hash != other.hash
+          || !fingerprint.equals(other.fingerprint)
+          || !settings.equals(other.settings)) {
+        return false;
+      }
+      return (content instanceof byte[] && other.content instanceof byte[])
+          ? Arrays.equals((byte[]) content, (byte[]) other.content)
+          : content.equals(other.content);
+    }
+  }
+
+  /**
+   * Returns the key for the input, and the input to validate in its place. Reading a stream to
+   * compute the key consumes it, so the replacement reads the same bytes again. If the document
+   * is too large to be eligible, the key is null, and the replacement reads the bytes read so far
+   * followed by the rest of the stream.
+   */
+  public Pair<Key, XmlInput> keyFor(String fingerprint, String settings, XmlInput in)
+      throws IOException {
+    if (in.isRepeatable()) {
+      if (in.length() > maxPayloadBytes) {
+        return Pair.of(null, in);
+      }
+      String content = in.getContent();
+      long hash = FNV_OFFSET_BASIS;
+      for (int i = 0; i < content.length(); i++) {
+        hash = (hash ^ content.charAt(i)) * FNV_PRIME;
+      }
+      return Pair.of(new Key(fingerprint, settings, content, hash), in);
+    }
+    InputStream stream = in.getStream();
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    byte[] chunk = new byte[4096];
+    int read;
+    while (buffer.size() <= maxPayloadBytes && (read = stream.read(chunk)) > 0) {
+      buffer.write(chunk, 0, read);
+    }
+    byte[] content = buffer.toByteArray();
+    if (content.length > maxPayloadBytes) {
+      return Pair.of(
+          null, XmlInput.of(new SequenceInputStream(new ByteArrayInputStream(content), stream)));
+    }
+    long hash = FNV_OFFSET_BASIS;
+    for (byte b : content) {
+      hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+    }
+    return Pair.of(
+        new Key(fingerprint, settings, content, hash),
+        XmlInput.of(new ByteArrayInputStream(content)));
+  }
+
+  /** The variables recorded for the key, or null if there are none. */
+  public Map<String, Object> get(Key key) {
+    return cache.getIfPresent(key);
+  }
+
+  public void put(Key key, Map<String, Object> variables) {
+    cache.put(key, variables);
+  }
+}
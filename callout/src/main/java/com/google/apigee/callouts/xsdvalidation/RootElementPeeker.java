@@ -0,0 +1,146 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Determines the root element of a document by reading only as far as the first start element,
+ * using StAX. Character input can simply be read again. For a stream, the bytes consumed while
+ * peeking are recorded, so the caller gets back a stream that delivers the complete document, for
+ * validation.
+ */
+public class RootElementPeeker {
+  private static final XMLInputFactory inputFactory;
+
+  static {
+    inputFactory = XMLInputFactory.newInstance();
+    inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+    inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+  }
+
+  private RootElementPeeker() {}
+
+  public static class Result {
+    // null if the document has no element at all
+    public final QName root;
+    public final XmlInput input;
+
+    Result(QName root, XmlInput input) {
+      this.root = root;
+      this.input = input;
+    }
+  }
+
+  public static Result peek(XmlInput in) throws XMLStreamException {
+    if (in.isRepeatable()) {
+      return new Result(peekRoot(inputFactory.createXMLStreamReader(in.newReader())), in);
+    }
+    RecordingInputStream recorder = new RecordingInputStream(in.getStream());
+    QName root = peekRoot(inputFactory.createXMLStreamReader(recorder));
+    return new Result(root, XmlInput.of(recorder.replay()));
+  }
+
+  private static QName peekRoot(XMLStreamReader reader) throws XMLStreamException {
+    QName root = null;
+    try {
+      while (reader.hasNext()) {
+        if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+          root = reader.getName();
+          break;
+        }
+      }
+    } finally {
+      // does not close the underlying stream
+      reader.close();
+    }
+    return root;
+  }
+
+  static class RecordingInputStream extends FilterInputStream {
+    private final RecordingBuffer recorded = new RecordingBuffer();
+
+    RecordingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) {
+        recorded.write(b);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0) {
+        recorded.write(b, off, n);
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      // skipped bytes must be recorded too
+      byte[] buffer = new byte[(int) Math.min(n, 2048)];
+      long total = 0;
+      while (total < n) {
+        int r = read(buffer, 0, (int) Math.min(buffer.length, n - total));
+        if (r <= 0) break;
+        total += r;
+      }
+      return total;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    @Override
+    public void close() {
+      // the stream is replayed later, so it must stay open
+    }
+
+    InputStream replay() {
+      return new SequenceInputStream(recorded.toInputStream(), in);
+    }
+  }
+
+  // replays the recorded bytes from the buffer itself, rather than from a copy
+  static class RecordingBuffer extends ByteArrayOutputStream {
+    RecordingBuffer() {
+      super(2048);
+    }
+
+    InputStream toInputStream() {
+      return new ByteArrayInputStream(buf, 0, count);
+    }
+  }
+}
@@ -0,0 +1,334 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import javax.xml.XMLConstants;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import org.xml.sax.SAXException;
+
+/**
+ * A JVM-wide cache of compiled Schema objects. The key is a fingerprint of the content of the main
+ * XSD plus the name and content of each dependent XSD, so a change in any of them results in a new
+ * compile. A compiled Schema is immutable and thread-safe, so it can be shared across requests.
+ * Each cached Schema carries its own pool of Validators; the key includes the pool configuration,
+ * so policies that configure the pool differently get separate entries. The cache is bounded by
+ * the estimated heap of the compiled schemas, within {@link CacheBudget#SCHEMA_BYTES}.
+ *
+ * <p>The first request for a schema compiles it, and concurrent requests for the same schema wait
+ * for that one compile rather than running their own, so a burst of requests on a cold cache
+ * compiles each schema once. A compile that fails is not cached, so the next request tries again.
+ */
+public class SchemaCache {
+  private static final String JDK_SCHEMA_FACTORY =
+      "com.sun.org.apache.xerces.internal.jaxp.validation.XMLSchemaFactory";
+
+  private static final long IDLE_NANOS = TimeUnit.MINUTES.toNanos(10);
+  // The key does not cover the XSDs that the compile retrieves via http(s) for a schemaLocation,
+  // and a cached schema does not read them again, so they would never be checked for changes. Such
+  // a schema expires once they are due for a refresh, however often it is used.
+  private static final long FETCHED_NANOS =
+      TimeUnit.MILLISECONDS.toNanos(UrlResourceCache.REFRESH_AFTER_MILLIS);
+
+  private static final Cache<String, CompiledSchema> compiledSchemaCache =
+      Caffeine.newBuilder()
+          .maximumWeight(CacheBudget.SCHEMA_BYTES)
+          .weigher((String key, CompiledSchema value) -> value.estimatedBytes)
+          .expireAfter(
+              new Expiry<String, CompiledSchema>() {
+                public long expireAfterCreate(
+                    String key, CompiledSchema value, long currentTime) {
+                  return (value.fetchedSources) ? FETCHED_NANOS : IDLE_NANOS;
+                }
+
+                public long expireAfterUpdate(
+                    String key, CompiledSchema value, long currentTime, long currentDuration) {
+                  return expireAfterCreate(key, value, currentTime);
+                }
+
+                public long expireAfterRead(
+                    String key, CompiledSchema value, long currentTime, long currentDuration) {
+                  return (value.fetchedSources) ? currentDuration : IDLE_NANOS;
+                }
+              })
+          .recordStats()
+          .build();
+
+  // the compiles in progress, by key, for concurrent requests to wait on
+  private static final ConcurrentHashMap<String, CompletableFuture<CompiledSchema>> inFlight =
+      new ConcurrentHashMap<String, CompletableFuture<CompiledSchema>>();
+  // the cache does not load the schemas itself, so it cannot count the compiles
+  private static final LongAdder compiles = new LongAdder();
+  private static final LongAdder compileNanos = new LongAdder();
+  // incremented after each invalidation, so that holders of compiled schemas outside the cache can
+  // tell that theirs may have been removed
+  private static final AtomicLong generation = new AtomicLong();
+
+  private SchemaCache() {}
+
+  /**
+   * The result of a lookup: the compiled schema, whether it was served from the cache, and whether
+   * the request waited for a compile that another request started.
+   */
+  public static class Lookup {
+    public final CompiledSchema compiled;
+    public final boolean hit;
+    public final boolean waited;
+
+    Lookup(CompiledSchema compiled, boolean hit, boolean waited) {
+      this.compiled = compiled;
+      this.hit = hit;
+      this.waited = waited;
+    }
+  }
+
+  /**
+   * Returns the compiled schema for the given XSDs, compiling it if necessary. The schema is
+   * cached per pool configuration, so the returned schema always has a pool configured as given.
+   * With sharedGrammars, imported grammars come from the {@link
+   * SharedGrammarPool}; such a schema is cached separately from one compiled without it. If
+   * another request is compiling the same schema, this waits for it without a limit.
+   */
+  public static Lookup get(
+      XsdResource mainXsd,
+      Map<String, XsdResource> dependencies,
+      Function<String, XsdResource> httpRefResolver,
+      ValidatorPool.Config poolConfig,
+      boolean sharedGrammars)
+      throws SAXException {
+    return get(mainXsd, dependencies, httpRefResolver, poolConfig, sharedGrammars, 0);
+  }
+
+  /**
+   * As above, but a request that waits for another request to compile the schema gives up after
+   * waitMillis, with an IllegalStateException. A waitMillis of zero means no limit. The compile
+   * itself is not cancelled, so a later request may find the schema in the cache.
+   */
+  public static Lookup get(
+      XsdResource mainXsd,
+      Map<String, XsdResource> dependencies,
+      Function<String, XsdResource> httpRefResolver,
+      ValidatorPool.Config poolConfig,
+      boolean sharedGrammars,
+      long waitMillis)
+      throws SAXException {
+    String fingerprint =
+        (sharedGrammars ? "shared:" : "") + fingerprint(mainXsd, dependencies);
+    String key = fingerprint + "|" + poolConfig.key();
+    CompiledSchema cached = compiledSchemaCache.getIfPresent(key);
+    if (cached != null) {
+      return new Lookup(cached, true, false);
+    }
+    CompletableFuture<CompiledSchema> mine = new CompletableFuture<CompiledSchema>();
+    CompletableFuture<CompiledSchema> existing = inFlight.putIfAbsent(key, mine);
+    if (existing != null) {
+      return new Lookup(await(existing, waitMillis), true, true);
+    }
+    // this request compiles the schema, on its own thread; concurrent requests wait for it
+    try {
+      // another request may have finished a compile since the lookup above
+      cached = compiledSchemaCache.asMap().get(key);
+      if (cached != null) {
+        mine.complete(cached);
+        return new Lookup(cached, true, false);
+      }
+      // collect the XSDs retrieved via http during the compile too, for weighing the schema and
+      // for invalidating it
+      List<XsdResource> sources = new ArrayList<XsdResource>();
+      boolean[] fetched = {false};
+      sources.add(mainXsd);
+      if (dependencies != null) {
+        sources.addAll(dependencies.values());
+      }
+      Function<String, XsdResource> collectingResolver =
+          (httpRefResolver == null)
+              ? null
+              : ref -> {
+                XsdResource resource = httpRefResolver.apply(ref);
+                if (resource != null) {
+                  sources.add(resource);
+                  fetched[0] = true;
+                }
+                return resource;
+              };
+      long start = System.nanoTime();
+      Schema schema =
+          (sharedGrammars)
+              ? SharedGrammarPool.compile(mainXsd, dependencies, collectingResolver)
+              : compile(mainXsd, dependencies, collectingResolver);
+      compiles.increment();
+      compileNanos.add(System.nanoTime() - start);
+      CompiledSchema compiled =
+          new CompiledSchema(schema, fingerprint, poolConfig, sources, fetched[0]);
+      compiledSchemaCache.put(key, compiled);
+      mine.complete(compiled);
+      return new Lookup(compiled, false, false);
+    } catch (SAXException | RuntimeException | Error exc) {
+      mine.completeExceptionally(exc);
+      throw exc;
+    } finally {
+      inFlight.remove(key, mine);
+    }
+  }
+
+  private static CompiledSchema await(CompletableFuture<CompiledSchema> future, long waitMillis)
+      throws SAXException {
+    try {
+      return (waitMillis > 0) ? future.get(waitMillis, TimeUnit.MILLISECONDS) : future.get();
+    } catch (TimeoutException exc) {
+      throw new IllegalStateException(
+          String.format("schema compile not complete after waiting %dms", waitMillis));
+    } catch (InterruptedException exc) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("interrupted while waiting for the schema to compile");
+    } catch (ExecutionException exc) {
+      // the request that compiled the schema failed; report the same failure here
+      Throwable cause = exc.getCause();
+      if (cause instanceof SAXException) {
+        throw (SAXException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+  }
+
+  static Schema compile(
+      XsdResource mainXsd,
+      Map<String, XsdResource> dependencies,
+      Function<String, XsdResource> httpRefResolver)
+      throws SAXException {
+    SchemaFactory notThreadSafeFactory = newSchemaFactory();
+    // for resolving imports, and also includes. An http(s) schemaLocation goes through the
+    // resolver even when there are no dependent schemas, so that the XSD is cached and the fetch
+    // timeouts apply. With neither, use the default resolver.
+    if (dependencies != null || httpRefResolver != null) {
+      notThreadSafeFactory.setResourceResolver(
+          new CustomResourceResolver(dependencies, httpRefResolver));
+    }
+    return notThreadSafeFactory.newSchema(mainXsd.newSource());
+  }
+
+  // Xerces-J is on the classpath for the SharedGrammarPool, and registers itself as a JAXP
+  // provider. Prefer the implementation built into the JDK, which is what the callout has
+  // always used.
+  private static SchemaFactory newSchemaFactory() {
+    try {
+      return SchemaFactory.newInstance(
+          XMLConstants.W3C_XML_SCHEMA_NS_URI, JDK_SCHEMA_FACTORY, null);
+    } catch (IllegalArgumentException exc) {
+      return SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+    }
+  }
+
+  // The digest of each XSD is computed once, when it is loaded, so this hashes only the digests.
+  static String fingerprint(XsdResource mainXsd, Map<String, XsdResource> dependencies) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      update(md, mainXsd.getDigest());
+      if (dependencies != null) {
+        // sort, so that the order in which the properties are declared does not matter
+        for (Map.Entry<String, XsdResource> entry : new TreeMap<>(dependencies).entrySet()) {
+          update(md, entry.getKey());
+          update(md, entry.getValue().getDigest());
+        }
+      }
+      return XsdResource.toHex(md.digest());
+    } catch (NoSuchAlgorithmException exc) {
+      throw new IllegalStateException(exc);
+    }
+  }
+
+  private static void update(MessageDigest md, String s) {
+    md.update(s.getBytes(StandardCharsets.UTF_8));
+    md.update((byte) 0);
+  }
+
+  public static CacheStats stats() {
+    return compiledSchemaCache.stats();
+  }
+
+  public static long size() {
+    return compiledSchemaCache.estimatedSize();
+  }
+
+  public static CacheDiagnostics.Stats diagnostics() {
+    CacheStats stats = compiledSchemaCache.stats();
+    return CacheDiagnostics.of(
+        compiledSchemaCache,
+        stats.hitCount(),
+        stats.missCount(),
+        compiles.sum(),
+        compileNanos.sum());
+  }
+
+  /**
+   * Removes the compiled schemas that were compiled from the XSD with the given digest, along with
+   * their pooled Validators. Requests that hold one of them already finish with it. Returns the
+   * number of schemas removed.
+   */
+  public static int invalidateDependents(String digest) {
+    int removed = 0;
+    for (Map.Entry<String, CompiledSchema> entry : compiledSchemaCache.asMap().entrySet()) {
+      if (entry.getValue().sourceDigests.contains(digest)
+          && compiledSchemaCache.asMap().remove(entry.getKey(), entry.getValue())) {
+        removed++;
+      }
+    }
+    // a schema held outside the cache may depend on the XSD even if the cache has evicted it
+    generation.incrementAndGet();
+    return removed;
+  }
+
+  /** Removes all the compiled schemas. Returns the number removed. */
+  public static int invalidateAll() {
+    int removed = 0;
+    for (String key : compiledSchemaCache.asMap().keySet()) {
+      if (compiledSchemaCache.asMap().remove(key) != null) {
+        removed++;
+      }
+    }
+    generation.incrementAndGet();
+    return removed;
+  }
+
+  /**
+   * A number that changes after each invalidation. A compiled schema that was looked up under the
+   * current generation has not been invalidated since.
+   */
+  public static long generation() {
+    return generation.get();
+  }
+}
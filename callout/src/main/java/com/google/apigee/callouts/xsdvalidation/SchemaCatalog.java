@@ -0,0 +1,301 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * Named schema sets, declared in a manifest in the jar, and compiled once per JVM. The manifest is
+ * a properties file. Each set has a main XSD, an optional version, and one entry for each XSD it
+ * imports or includes, keyed by the schemaLocation that refers to it:
+ *
+ * <pre>
+ * orders.main = xsd/orders.xsd
+ * orders.version = 2.1
+ * orders.import.common-types.xsd = xsd/common-types.xsd
+ * orders.import.soap-envelope-1.1.xsd = soap-envelope-1.1.xsd
+ * </pre>
+ *
+ * <p>The values are resource names in the jar. When the catalog is loaded, all the sets are
+ * compiled in parallel, in the background. A request for a set that is still compiling waits for
+ * it. A set that fails to compile, or that is invalidated, is compiled again on the next request
+ * for it.
+ *
+ * <p>The catalog is loaded when the callout class is loaded, so a malformed manifest does not fail
+ * the load; the error is reported to each policy that names a set.
+ */
+public class SchemaCatalog {
+  private static final String MAIN = "main";
+  private static final String VERSION = "version";
+  private static final String IMPORT = "import.";
+
+  public static final SchemaCatalog EMPTY =
+      new SchemaCatalog(Collections.emptyMap(), null, null, null);
+
+  /** The declaration of one schema set. */
+  public static class SchemaSet {
+    public final String name;
+    public final String version;
+    public final String main;
+    // the resource for each schemaLocation
+    public final Map<String, String> imports;
+
+    SchemaSet(String name, String version, String main, Map<String, String> imports) {
+      this.name = name;
+      this.version = version;
+      this.main = main;
+      this.imports = imports;
+    }
+  }
+
+  private final Map<String, SchemaSet> sets;
+  // why the manifest could not be loaded, or null
+  private final IllegalStateException error;
+  private final Map<String, CompletableFuture<CompiledSchema>> compiled =
+      new ConcurrentHashMap<String, CompletableFuture<CompiledSchema>>();
+  private final Function<String, XsdResource> resourceLoader;
+  private final Function<String, XsdResource> httpRefResolver;
+
+  private SchemaCatalog(
+      Map<String, SchemaSet> sets,
+      IllegalStateException error,
+      Function<String, XsdResource> resourceLoader,
+      Function<String, XsdResource> httpRefResolver) {
+    this.sets = sets;
+    this.error = error;
+    this.resourceLoader = resourceLoader;
+    this.httpRefResolver = httpRefResolver;
+  }
+
+  /**
+   * Reads the manifest with the given resource name, and starts compiling each set. Returns {@link
+   * #EMPTY} if there is no such resource. If the manifest cannot be read or is malformed, returns
+   * a catalog with no sets, for which {@link #getSet} throws the error.
+   */
+  public static SchemaCatalog load(
+      String manifestName,
+      Function<String, XsdResource> resourceLoader,
+      Function<String, XsdResource> httpRefResolver) {
+    Properties manifest = new Properties();
+    try (InputStream in = SchemaCatalog.class.getResourceAsStream(manifestName)) {
+      if (in == null) {
+        return EMPTY;
+      }
+      manifest.load(in);
+    } catch (IOException | IllegalArgumentException exc) {
+      return new SchemaCatalog(
+          Collections.emptyMap(),
+          new IllegalStateException("schema catalog: cannot read " + manifestName, exc),
+          null,
+          null);
+    }
+    Map<String, SchemaSet> sets;
+    try {
+      sets = parse(manifest);
+    } catch (IllegalStateException exc) {
+      return new SchemaCatalog(Collections.emptyMap(), exc, null, null);
+    }
+    SchemaCatalog catalog = new SchemaCatalog(sets, null, resourceLoader, httpRefResolver);
+    catalog.preload();
+    return catalog;
+  }
+
+  static Map<String, SchemaSet> parse(Properties manifest) {
+    Map<String, Map<String, String>> entries = new TreeMap<String, Map<String, String>>();
+    for (String key : manifest.stringPropertyNames()) {
+      int dot = key.indexOf('.');
+      if (dot < 1) {
+        throw new IllegalStateException("schema catalog: invalid entry " + key);
+      }
+      entries
+          .computeIfAbsent(key.substring(0, dot), k -> new HashMap<String, String>())
+          .put(key.substring(dot + 1), manifest.getProperty(key).trim());
+    }
+    Map<String, SchemaSet> sets = new TreeMap<String, SchemaSet>();
+    for (Map.Entry<String, Map<String, String>> entry : entries.entrySet()) {
+      String name = entry.getKey();
+      Map<String, String> imports = new HashMap<String, String>();
+      for (Map.Entry<String, String> attr : entry.getValue().entrySet()) {
+        if (attr.getKey().startsWith(IMPORT)) {
+          imports.put(attr.getKey().substring(IMPORT.length()), attr.getValue());
+        } else if (!attr.getKey().equals(MAIN) && !attr.getKey().equals(VERSION)) {
+          throw new IllegalStateException(
+              "schema catalog: invalid entry " + name + "." + attr.getKey());
+        }
+      }
+      String main = entry.getValue().get(MAIN);
+      if (main == null || main.equals("")) {
+        throw new IllegalStateException("schema catalog: no main XSD for " + name);
+      }
+      sets.put(
+          name,
+          new SchemaSet(
+              name,
+              entry.getValue().get(VERSION),
+              main,
+              Collections.unmodifiableMap(imports)));
+    }
+    return Collections.unmodifiableMap(sets);
+  }
+
+  private void preload() {
+    ExecutorService executor =
+        Executors.newFixedThreadPool(
+            Math.max(1, Math.min(sets.size(), Runtime.getRuntime().availableProcessors())),
+            r -> {
+              Thread t = new Thread(r, "xsd-catalog-preload");
+              t.setDaemon(true);
+              return t;
+            });
+    for (SchemaSet set : sets.values()) {
+      compiled.put(
+          set.name,
+          CompletableFuture.supplyAsync(
+              () -> compile(set, resourceLoader, httpRefResolver), executor));
+    }
+    // the threads exit once the sets are compiled
+    executor.shutdown();
+  }
+
+  private static CompiledSchema compile(
+      SchemaSet set,
+      Function<String, XsdResource> resourceLoader,
+      Function<String, XsdResource> httpRefResolver) {
+    try {
+      XsdResource main = load(set.main, resourceLoader);
+      Map<String, XsdResource> dependencies = null;
+      if (!set.imports.isEmpty()) {
+        dependencies = new HashMap<String, XsdResource>();
+        for (Map.Entry<String, String> entry : set.imports.entrySet()) {
+          dependencies.put(entry.getKey(), load(entry.getValue(), resourceLoader));
+        }
+      }
+      CompiledSchema schema =
+          SchemaCache.get(
+                  main, dependencies, httpRefResolver, ValidatorPool.Config.defaults(), false)
+              .compiled;
+      schema.warmUp();
+      return schema;
+    } catch (Exception exc) {
+      throw new CompletionException(
+          new IllegalStateException(
+              String.format("cannot compile schema set %s: %s", set.name, exc.getMessage()),
+              exc));
+    }
+  }
+
+  private static XsdResource load(String name, Function<String, XsdResource> resourceLoader) {
+    XsdResource resource = resourceLoader.apply(name);
+    if (resource == null || resource.isEmpty()) {
+      throw new IllegalStateException("resource not found: " + name);
+    }
+    return resource;
+  }
+
+  public Set<String> names() {
+    return sets.keySet();
+  }
+
+  /**
+   * Returns the declaration of the named set, or null if the catalog has no such set. Throws
+   * IllegalStateException if the manifest could not be loaded.
+   */
+  public SchemaSet getSet(String name) {
+    if (error != null) {
+      throw new IllegalStateException(error.getMessage(), error);
+    }
+    return sets.get(name);
+  }
+
+  /**
+   * Returns the compiled schema for the named set, waiting for it if it is still compiling. If an
+   * earlier compile failed, compiles the set again. Throws IllegalStateException if the set could
+   * not be compiled.
+   */
+  public CompiledSchema get(String name) {
+    SchemaSet set = sets.get(name);
+    if (set == null) {
+      throw new IllegalStateException("unknown schema set " + name);
+    }
+    CompletableFuture<CompiledSchema> future = compiled.get(name);
+    while (future == null || future.isCompletedExceptionally()) {
+      // one request compiles again; the others that see the failure wait for that compile
+      CompletableFuture<CompiledSchema> retry = new CompletableFuture<CompiledSchema>();
+      boolean mine =
+          (future == null)
+              ? compiled.putIfAbsent(name, retry) == null
+              : compiled.replace(name, future, retry);
+      if (mine) {
+        try {
+          retry.complete(compile(set, resourceLoader, httpRefResolver));
+        } catch (CompletionException exc) {
+          retry.completeExceptionally(exc.getCause());
+        }
+        future = retry;
+        break;
+      }
+      future = compiled.get(name);
+    }
+    try {
+      return future.join();
+    } catch (CompletionException exc) {
+      throw (exc.getCause() instanceof IllegalStateException)
+          ? (IllegalStateException) exc.getCause()
+          : new IllegalStateException(exc.getCause());
+    }
+  }
+
+  /**
+   * Forgets the compiled schema of each set that was built from the XSD with the given digest, so
+   * that the next request for the set compiles it again. Returns the number of sets affected.
+   */
+  public int invalidateDependents(String digest) {
+    int removed = 0;
+    for (Map.Entry<String, CompletableFuture<CompiledSchema>> entry : compiled.entrySet()) {
+      CompletableFuture<CompiledSchema> future = entry.getValue();
+      if (future.isDone()
+          && !future.isCompletedExceptionally()
+          && future.join().sourceDigests.contains(digest)
+          && compiled.remove(entry.getKey(), future)) {
+        removed++;
+      }
+    }
+    return removed;
+  }
+
+  /** Forgets the compiled schemas of all the sets. */
+  public void invalidateAll() {
+    compiled.clear();
+  }
+
+  /** Whether the named set has finished compiling, successfully or not. */
+  public boolean isReady(String name) {
+    CompletableFuture<CompiledSchema> future = compiled.get(name);
+    return future != null && future.isDone();
+  }
+}
@@ -0,0 +1,300 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import javax.xml.validation.Schema;
+import org.apache.xerces.impl.xs.SchemaGrammar;
+import org.apache.xerces.impl.xs.XSDDescription;
+import org.apache.xerces.jaxp.validation.XMLSchemaFactory;
+import org.apache.xerces.parsers.XMLGrammarPreparser;
+import org.apache.xerces.util.ErrorHandlerWrapper;
+import org.apache.xerces.util.XMLGrammarPoolImpl;
+import org.apache.xerces.xni.XMLResourceIdentifier;
+import org.apache.xerces.xni.XNIException;
+import org.apache.xerces.xni.grammars.Grammar;
+import org.apache.xerces.xni.grammars.XMLGrammarDescription;
+import org.apache.xerces.xni.grammars.XMLGrammarPool;
+import org.apache.xerces.xni.parser.XMLEntityResolver;
+import org.apache.xerces.xni.parser.XMLInputSource;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+/**
+ * A JVM-wide pool of parsed schema grammars, shared by all the schemas compiled with the
+ * shared-grammar-pool option. When a schema imports a namespace whose grammar is already in the
+ * pool, the compiler uses the pooled grammar rather than parsing the imported XSD again.
+ *
+ * <p>Entries are keyed by target namespace, schema location and a digest of the content found at
+ * that location, so a different XSD for the same namespace gets its own entry. Only grammars that
+ * do not themselves import other namespaces are shared, because such a grammar depends only on its
+ * own content; a grammar with imports depends on how those imports resolve for a particular set of
+ * schemas.
+ *
+ * <p>This relies on the Xerces-J grammar caching API, which the JDK's built-in copy of Xerces does
+ * not expose.
+ */
+public class SharedGrammarPool {
+  private static final String GRAMMAR_POOL =
+      "http://apache.org/xml/properties/internal/grammar-pool";
+  private static final String NAMESPACES_FEATURE = "http://xml.org/sax/features/namespaces";
+  private static final String SCHEMA_VALIDATION_FEATURE =
+      "http://apache.org/xml/features/validation/schema";
+
+  // the grammars are weighed by the size of their source, within the budget for compiled schemas
+  private static final Cache<String, Shared> sharedGrammars =
+      Caffeine.newBuilder()
+          .maximumWeight(CacheBudget.SCHEMA_BYTES)
+          .weigher((String key, Shared value) -> value.weight)
+          .expireAfterAccess(30, TimeUnit.MINUTES)
+          .recordStats()
+          .build();
+  private static final LongAdder hits = new LongAdder();
+  private static final LongAdder misses = new LongAdder();
+
+  private SharedGrammarPool() {}
+
+  /**
+   * Compiles a schema, taking any shareable imported grammars from the pool and adding newly
+   * parsed ones to it. The resulting Schema can see only the grammars in its own import closure,
+   * not everything in the pool.
+   */
+  public static Schema compile(
+      XsdResource mainXsd,
+      Map<String, XsdResource> dependencies,
+      Function<String, XsdResource> httpRefResolver)
+      throws SAXException {
+    Function<String, XsdResource> resolver =
+        location -> {
+          if (location == null) return null;
+          if (location.startsWith("http")) return httpRefResolver.apply(location);
+          return (dependencies != null) ? dependencies.get(location) : null;
+        };
+
+    XMLGrammarPreparser preparser = new XMLGrammarPreparser();
+    preparser.registerPreparser(XMLGrammarDescription.XML_SCHEMA, null);
+    preparser.setProperty(GRAMMAR_POOL, new SessionPool(resolver));
+    preparser.setFeature(NAMESPACES_FEATURE, true);
+    preparser.setFeature(SCHEMA_VALIDATION_FEATURE, true);
+    preparser.setEntityResolver(new DependencyEntityResolver(resolver));
+    // the default XNI error handler only reports errors; treat them as fatal, as SchemaFactory does
+    preparser.setErrorHandler(new ErrorHandlerWrapper(new ThrowingErrorHandler()));
+
+    Grammar grammar;
+    try {
+      grammar =
+          preparser.preparseGrammar(
+              XMLGrammarDescription.XML_SCHEMA,
+              new XMLInputSource(
+                  null, null, null, mainXsd.openStream(), mainXsd.getEncoding()));
+    } catch (XNIException exc) {
+      if (exc.getException() instanceof SAXException) {
+        throw (SAXException) exc.getException();
+      }
+      throw exc;
+    } catch (IOException exc) {
+      throw new SAXException(exc);
+    }
+
+    XMLGrammarPoolImpl closure = new XMLGrammarPoolImpl();
+    for (Grammar g : importClosure((SchemaGrammar) grammar)) {
+      closure.putGrammar(g);
+    }
+    closure.lockPool();
+    return new XMLSchemaFactory().newSchema(closure);
+  }
+
+  private static List<SchemaGrammar> importClosure(SchemaGrammar root) {
+    List<SchemaGrammar> result = new ArrayList<SchemaGrammar>();
+    List<SchemaGrammar> pending = new ArrayList<SchemaGrammar>();
+    pending.add(root);
+    while (!pending.isEmpty()) {
+      SchemaGrammar g = pending.remove(pending.size() - 1);
+      if (result.contains(g)) continue;
+      result.add(g);
+      Vector<?> imported = g.getImportedGrammars();
+      if (imported != null) {
+        for (Object o : imported) {
+          pending.add((SchemaGrammar) o);
+        }
+      }
+    }
+    return result;
+  }
+
+  // the XSD that the grammar was, or will be, parsed from; null for the main schema, or for an XSD
+  // that this callout did not supply
+  private static XsdResource sourceOf(
+      XMLGrammarDescription desc, Function<String, XsdResource> resolver) {
+    if (!(desc instanceof XSDDescription)) {
+      return null;
+    }
+    return resolver.apply(locationOf((XSDDescription) desc));
+  }
+
+  private static String locationOf(XSDDescription desc) {
+    String location = desc.getLiteralSystemId();
+    if (location == null && desc.getLocationHints() != null && desc.getLocationHints().length > 0) {
+      location = desc.getLocationHints()[0];
+    }
+    return location;
+  }
+
+  private static String keyFor(XSDDescription desc, XsdResource content) {
+    String namespace = (desc.getTargetNamespace() == null) ? "" : desc.getTargetNamespace();
+    return namespace + " " + locationOf(desc) + " " + content.getDigest();
+  }
+
+  /** A pooled grammar, with its weight in the pool. */
+  static class Shared {
+    final Grammar grammar;
+    final int weight;
+
+    Shared(Grammar grammar, int weight) {
+      this.grammar = grammar;
+      this.weight = weight;
+    }
+  }
+
+  public static long hitCount() {
+    return hits.sum();
+  }
+
+  public static long missCount() {
+    return misses.sum();
+  }
+
+  public static long size() {
+    return sharedGrammars.estimatedSize();
+  }
+
+  public static CacheDiagnostics.Stats diagnostics() {
+    return CacheDiagnostics.of(sharedGrammars, hits.sum(), misses.sum(), 0, 0);
+  }
+
+  /** Removes the pooled grammar parsed from the XSD with the given digest, if any. */
+  public static void invalidateSource(String digest) {
+    String suffix = " " + digest;
+    sharedGrammars.asMap().keySet().removeIf(key -> key.endsWith(suffix));
+  }
+
+  /** Removes all the pooled grammars for the given target namespace. */
+  public static void invalidate(String namespace) {
+    String prefix = ((namespace == null) ? "" : namespace) + " ";
+    sharedGrammars.asMap().keySet().removeIf(key -> key.startsWith(prefix));
+  }
+
+  public static void invalidateAll() {
+    sharedGrammars.invalidateAll();
+  }
+
+  /** The view of the shared pool that the grammar loader sees while compiling one schema. */
+  static class SessionPool implements XMLGrammarPool {
+    private final Function<String, XsdResource> resolver;
+
+    SessionPool(Function<String, XsdResource> resolver) {
+      this.resolver = resolver;
+    }
+
+    public Grammar[] retrieveInitialGrammarSet(String grammarType) {
+      return new Grammar[0];
+    }
+
+    public Grammar retrieveGrammar(XMLGrammarDescription desc) {
+      XsdResource content = sourceOf(desc, resolver);
+      if (content == null) {
+        return null;
+      }
+      Shared shared = sharedGrammars.getIfPresent(keyFor((XSDDescription) desc, content));
+      if (shared != null) {
+        hits.increment();
+        return shared.grammar;
+      }
+      misses.increment();
+      return null;
+    }
+
+    public void cacheGrammars(String grammarType, Grammar[] grammars) {
+      if (!XMLGrammarDescription.XML_SCHEMA.equals(grammarType)) {
+        return;
+      }
+      for (Grammar grammar : grammars) {
+        Vector<?> imported = ((SchemaGrammar) grammar).getImportedGrammars();
+        if (imported != null && !imported.isEmpty()) {
+          continue;
+        }
+        XMLGrammarDescription desc = grammar.getGrammarDescription();
+        XsdResource content = sourceOf(desc, resolver);
+        if (content != null) {
+          sharedGrammars
+              .asMap()
+              .putIfAbsent(
+                  keyFor((XSDDescription) desc, content),
+                  new Shared(grammar, CacheBudget.weighSchema(content.length())));
+        }
+      }
+    }
+
+    public void lockPool() {}
+
+    public void unlockPool() {}
+
+    public void clear() {}
+  }
+
+  /** Supplies the content of dependent XSDs, as CustomResourceResolver does for SchemaFactory. */
+  static class DependencyEntityResolver implements XMLEntityResolver {
+    private final Function<String, XsdResource> resolver;
+
+    DependencyEntityResolver(Function<String, XsdResource> resolver) {
+      this.resolver = resolver;
+    }
+
+    public XMLInputSource resolveEntity(XMLResourceIdentifier id) {
+      XsdResource content = resolver.apply(id.getLiteralSystemId());
+      if (content == null) {
+        return null;
+      }
+      return new XMLInputSource(
+          id.getPublicId(),
+          id.getLiteralSystemId(),
+          id.getBaseSystemId(),
+          content.openStream(),
+          content.getEncoding());
+    }
+  }
+
+  static class ThrowingErrorHandler implements ErrorHandler {
+    public void warning(SAXParseException exception) {}
+
+    public void error(SAXParseException exception) throws SAXException {
+      throw exception;
+    }
+
+    public void fatalError(SAXParseException exception) throws SAXException {
+      throw exception;
+    }
+  }
+}
@@ -0,0 +1,317 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.NamespaceSupport;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * A simple path that selects the element to validate, when that is not the document element. The
+ * path is a list of steps from the document element down, such as {@code
+ * /{http://schemas.xmlsoap.org/soap/envelope/}Envelope/Body/*}. A step is a name in Clark notation,
+ * which matches only in that namespace; a bare local name, which matches in any namespace; or
+ * {@code *}, which matches any element. The first element that matches the whole path is selected.
+ *
+ * <p>The preset {@code soap-body} selects the first child of the Body of a SOAP 1.1 or SOAP 1.2
+ * envelope.
+ */
+public class SubtreePath {
+  public static final String SOAP_BODY = "soap-body";
+  private static final String SOAP_11_NS = "http://schemas.xmlsoap.org/soap/envelope/";
+  private static final String SOAP_12_NS = "http://www.w3.org/2003/05/soap-envelope";
+
+  static class Step {
+    // null matches any namespace; null localName matches any element
+    final Set<String> namespaces;
+    final String localName;
+
+    Step(Set<String> namespaces, String localName) {
+      this.namespaces = namespaces;
+      this.localName = localName;
+    }
+
+    boolean matches(String uri, String localName) {
+      return (this.localName == null || this.localName.equals(localName))
+          && (namespaces == null || namespaces.contains((uri == null) ? "" : uri));
+    }
+  }
+
+  private final String spec;
+  private final Step[] steps;
+
+  private SubtreePath(String spec, Step[] steps) {
+    this.spec = spec;
+    this.steps = steps;
+  }
+
+  /** Parses a path or a preset name. Throws IllegalArgumentException if the path is malformed. */
+  public static SubtreePath parse(String spec) {
+    if (spec.equals(SOAP_BODY)) {
+      Set<String> soap = new HashSet<String>(Arrays.asList(SOAP_11_NS, SOAP_12_NS));
+      return new SubtreePath(
+          spec,
+          new Step[] {new Step(soap, "Envelope"), new Step(soap, "Body"), new Step(null, null)});
+    }
+    if (!spec.startsWith("/") || spec.length() == 1) {
+      throw new IllegalArgumentException("invalid subtree path " + spec);
+    }
+    List<Step> steps = new ArrayList<Step>();
+    int i = 1;
+    while (i <= spec.length()) {
+      // a namespace may contain slashes, so look for the end of the step after it
+      int nameStart = i;
+      if (i < spec.length() && spec.charAt(i) == '{') {
+        nameStart = spec.indexOf('}', i);
+        if (nameStart < 0) {
+          throw new IllegalArgumentException("invalid subtree path " + spec);
+        }
+      }
+      int end = spec.indexOf('/', nameStart);
+      if (end < 0) {
+        end = spec.length();
+      }
+      steps.add(parseStep(spec, spec.substring(i, end)));
+      i = end + 1;
+    }
+    return new SubtreePath(spec, steps.toArray(new Step[steps.size()]));
+  }
+
+  private static Step parseStep(String spec, String step) {
+    if (step.equals("*")) {
+      return new Step(null, null);
+    }
+    QName name = QName.valueOf(step);
+    if (name.getLocalPart().equals("") || name.getLocalPart().indexOf('{') >= 0) {
+      throw new IllegalArgumentException("invalid subtree path " + spec);
+    }
+    Set<String> namespaces =
+        step.startsWith("{") ? Collections.singleton(name.getNamespaceURI()) : null;
+    return new Step(namespaces, name.getLocalPart());
+  }
+
+  @Override
+  public String toString() {
+    return spec;
+  }
+
+  /** Returns the selected element of a parsed document, or null if there is none. */
+  public Element select(Document doc) {
+    return select(doc, 0);
+  }
+
+  private Element select(Node parent, int depth) {
+    for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+      if (child.getNodeType() == Node.ELEMENT_NODE
+          && steps[depth].matches(child.getNamespaceURI(), child.getLocalName())) {
+        Element found = (depth == steps.length - 1) ? (Element) child : select(child, depth + 1);
+        if (found != null) {
+          return found;
+        }
+      }
+    }
+    return null;
+  }
+
+  /** Returns a filter that passes on only the events of the selected element. */
+  public Filter newFilter(XMLReader parent) {
+    return new Filter(parent);
+  }
+
+  /**
+   * Passes the events of the selected element to its handlers as a document of its own, and drops
+   * the events of everything else. The skipped elements are still parsed, and count toward any
+   * payload limits, but the validator never sees them. The namespace declarations in scope at the
+   * selected element are passed on with it, so that prefixed values such as xsi:type or a
+   * QName-typed element still resolve. Reaching the end of the document without a match is an
+   * error.
+   */
+  public class Filter extends XMLFilterImpl {
+    private final NamespaceSupport outerNamespaces = new NamespaceSupport();
+    // prefix mappings for the next element, held until it is known whether it is selected
+    private final List<String[]> pending = new ArrayList<String[]>();
+    private final List<String> passedPrefixes = new ArrayList<String>();
+    // the number of open elements outside the selection, and how many of them match the path
+    private int depth;
+    private int matched;
+    // the depth within the selected element, once it has started
+    private int selectedDepth;
+    private QName selected;
+    private boolean done;
+
+    Filter(XMLReader parent) {
+      super(parent);
+    }
+
+    /** The selected element, once it has been found; null before then. */
+    public QName getSelected() {
+      return selected;
+    }
+
+    @Override
+    public void startDocument() throws SAXException {
+      outerNamespaces.reset();
+      pending.clear();
+      passedPrefixes.clear();
+      depth = matched = selectedDepth = 0;
+      selected = null;
+      done = false;
+      super.startDocument();
+    }
+
+    @Override
+    public void endDocument() throws SAXException {
+      if (selected == null) {
+        throw new SAXException("no element matches the subtree path " + spec);
+      }
+      super.endDocument();
+    }
+
+    @Override
+    public void startPrefixMapping(String prefix, String uri) throws SAXException {
+      if (selectedDepth > 0) {
+        super.startPrefixMapping(prefix, uri);
+      } else if (!done) {
+        pending.add(new String[] {prefix, uri});
+      }
+    }
+
+    @Override
+    public void endPrefixMapping(String prefix) throws SAXException {
+      if (selectedDepth > 0) {
+        super.endPrefixMapping(prefix);
+      }
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts)
+        throws SAXException {
+      if (selectedDepth > 0) {
+        selectedDepth++;
+        super.startElement(uri, localName, qName, atts);
+        return;
+      }
+      if (done) {
+        return;
+      }
+      if (matched == depth && steps[depth].matches(uri, localName)) {
+        matched = depth + 1;
+        if (matched == steps.length) {
+          startSelected();
+          selectedDepth = 1;
+          selected = new QName(uri, localName);
+          super.startElement(uri, localName, qName, atts);
+          return;
+        }
+      }
+      outerNamespaces.pushContext();
+      for (String[] mapping : pending) {
+        outerNamespaces.declarePrefix(mapping[0], mapping[1]);
+      }
+      pending.clear();
+      depth++;
+    }
+
+    // passes on the declarations of the ancestors, and then those of the element itself
+    private void startSelected() throws SAXException {
+      Set<String> declared = new HashSet<String>();
+      for (String[] mapping : pending) {
+        declared.add(mapping[0]);
+      }
+      Enumeration<?> prefixes = outerNamespaces.getPrefixes();
+      while (prefixes.hasMoreElements()) {
+        String prefix = (String) prefixes.nextElement();
+        if (!prefix.equals(XMLConstants.XML_NS_PREFIX) && !declared.contains(prefix)) {
+          passPrefix(prefix, outerNamespaces.getURI(prefix));
+        }
+      }
+      String defaultNs = outerNamespaces.getURI("");
+      if (defaultNs != null && !declared.contains("")) {
+        passPrefix("", defaultNs);
+      }
+      for (String[] mapping : pending) {
+        passPrefix(mapping[0], mapping[1]);
+      }
+      pending.clear();
+    }
+
+    private void passPrefix(String prefix, String uri) throws SAXException {
+      passedPrefixes.add(prefix);
+      super.startPrefixMapping(prefix, uri);
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+      if (selectedDepth > 0) {
+        super.endElement(uri, localName, qName);
+        if (--selectedDepth == 0) {
+          for (String prefix : passedPrefixes) {
+            super.endPrefixMapping(prefix);
+          }
+          done = true;
+        }
+        return;
+      }
+      if (done) {
+        return;
+      }
+      outerNamespaces.popContext();
+      depth--;
+      matched = Math.min(matched, depth);
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+      if (selectedDepth > 0) {
+        super.characters(ch, start, length);
+      }
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+      if (selectedDepth > 0) {
+        super.ignorableWhitespace(ch, start, length);
+      }
+    }
+
+    @Override
+    public void processingInstruction(String target, String data) throws SAXException {
+      if (selectedDepth > 0) {
+        super.processingInstruction(target, data);
+      }
+    }
+
+    @Override
+    public void skippedEntity(String name) throws SAXException {
+      if (selectedDepth > 0) {
+        super.skippedEntity(name);
+      }
+    }
+  }
+}
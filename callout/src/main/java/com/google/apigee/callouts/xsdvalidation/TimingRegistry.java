@@ -0,0 +1,187 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A JVM-wide registry of phase timings, keyed by schema fingerprint. Each schema has a histogram
+ * per phase, plus one for the total. Recording is lock-free: a histogram is an array of atomic
+ * bucket counters, so concurrent requests never wait on each other. Use {@link #dump()} to log the
+ * counts and percentiles periodically.
+ */
+public class TimingRegistry {
+  private static final int MAX_SCHEMAS = 256;
+  public static final String TOTAL = "total";
+
+  private static final Cache<String, SchemaTimings> registry =
+      Caffeine.newBuilder().maximumSize(MAX_SCHEMAS).build();
+
+  private TimingRegistry() {}
+
+  /** Adds the phases the request reached, and its total, to the histograms for the schema. */
+  public static void record(String fingerprint, Timings timings) {
+    if (fingerprint == null || !timings.isEnabled()) {
+      return;
+    }
+    SchemaTimings schemaTimings = registry.get(fingerprint, key -> new SchemaTimings());
+    for (Timings.Phase phase : Timings.Phase.values()) {
+      if (timings.wasRecorded(phase)) {
+        schemaTimings.phases[phase.ordinal()].record(timings.getNanos(phase));
+      }
+    }
+    schemaTimings.total.record(timings.getTotalNanos());
+  }
+
+  /**
+   * Returns the statistics for each schema, and within it for each phase that has been recorded,
+   * followed by the total.
+   */
+  public static Map<String, Map<String, Histogram.Snapshot>> snapshot() {
+    Map<String, Map<String, Histogram.Snapshot>> result = new TreeMap<>();
+    for (Map.Entry<String, SchemaTimings> entry : registry.asMap().entrySet()) {
+      Map<String, Histogram.Snapshot> phases = new LinkedHashMap<>();
+      for (Timings.Phase phase : Timings.Phase.values()) {
+        Histogram.Snapshot s = entry.getValue().phases[phase.ordinal()].snapshot();
+        if (s.count > 0) {
+          phases.put(phase.label, s);
+        }
+      }
+      phases.put(TOTAL, entry.getValue().total.snapshot());
+      result.put(entry.getKey(), phases);
+    }
+    return result;
+  }
+
+  /** Formats the snapshot as one line per schema and phase, suitable for a log. */
+  public static String dump() {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, Map<String, Histogram.Snapshot>> schema : snapshot().entrySet()) {
+      for (Map.Entry<String, Histogram.Snapshot> phase : schema.getValue().entrySet()) {
+        Histogram.Snapshot s = phase.getValue();
+        sb.append(
+            String.format(
+                "schema=%s phase=%s count=%d p50_ns=%d p99_ns=%d max_ns=%d%n",
+                schema.getKey(), phase.getKey(), s.count, s.p50, s.p99, s.max));
+      }
+    }
+    return sb.toString();
+  }
+
+  public static void reset() {
+    registry.invalidateAll();
+  }
+
+  private static class SchemaTimings {
+    final Histogram[] phases = new Histogram[Timings.Phase.values().length];
+    final Histogram total = new Histogram();
+
+    SchemaTimings() {
+      for (int i = 0; i < phases.length; i++) {
+        phases[i] = new Histogram();
+      }
+    }
+  }
+
+  /**
+   * A histogram of non-negative values with log-linear buckets: each power of two is split into 8
+   * buckets, so a percentile is reported to within 12.5% of the recorded value.
+   */
+  public static class Histogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (63 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+      if (value < 0) {
+        value = 0;
+      }
+      counts.incrementAndGet(indexOf(value));
+      max.accumulateAndGet(value, Math::max);
+    }
+
+    static int indexOf(long value) {
+      if (value < SUB_BUCKETS) {
+        return (int) value;
+      }
+      int exponent = 63 - Long.numberOfLeadingZeros(value);
+      int shift = exponent - SUB_BITS;
+      return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    // the largest value that falls in the bucket
+    static long upperBoundOf(int index) {
+      if (index < SUB_BUCKETS) {
+        return index;
+      }
+      int shift = index / SUB_BUCKETS - 1;
+      long mantissa = SUB_BUCKETS + index % SUB_BUCKETS;
+      return ((mantissa + 1) << shift) - 1;
+    }
+
+    public Snapshot snapshot() {
+      long[] copy = new long[BUCKETS];
+      long count = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        copy[i] = counts.get(i);
+        count += copy[i];
+      }
+      long maxValue = max.get();
+      return new Snapshot(
+          count,
+          percentile(copy, count, 0.50, maxValue),
+          percentile(copy, count, 0.99, maxValue),
+          maxValue);
+    }
+
+    private static long percentile(long[] counts, long total, double quantile, long max) {
+      if (total == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(quantile * total);
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return Math.min(upperBoundOf(i), max);
+        }
+      }
+      return max;
+    }
+
+    public static class Snapshot {
+      public final long count;
+      public final long p50;
+      public final long p99;
+      public final long max;
+
+      Snapshot(long count, long p50, long p99, long max) {
+        this.count = count;
+        this.p50 = p50;
+        this.p99 = p99;
+        this.max = max;
+      }
+    }
+  }
+}
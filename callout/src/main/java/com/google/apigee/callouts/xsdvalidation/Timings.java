@@ -0,0 +1,92 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+/**
+ * The time spent in each phase of one request. The phases run one after another, so each is
+ * measured as a lap: the time since the previous lap ended. The {@link #DISABLED} instance does not
+ * read the clock, so turning timing off leaves only a few no-op calls.
+ */
+public class Timings {
+  public enum Phase {
+    PROPERTIES("properties"),
+    PARSE("parse"),
+    ROOT_CHECK("root_check"),
+    FETCH("fetch"),
+    COMPILE("compile"),
+    VALIDATE("validate");
+
+    public final String label;
+
+    Phase(String label) {
+      this.label = label;
+    }
+  }
+
+  public static final Timings DISABLED = new Timings(false);
+
+  private final boolean enabled;
+  private final long[] elapsed = new long[Phase.values().length];
+  private final boolean[] recorded = new boolean[Phase.values().length];
+  private long start;
+  private long lapStart;
+  private long end;
+
+  private Timings(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  /** Returns a new instance with the clock started. */
+  public static Timings start() {
+    Timings timings = new Timings(true);
+    timings.start = timings.lapStart = System.nanoTime();
+    return timings;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /** Charges the time since the previous lap to the given phase. */
+  public void lap(Phase phase) {
+    if (!enabled) {
+      return;
+    }
+    long now = System.nanoTime();
+    elapsed[phase.ordinal()] += now - lapStart;
+    recorded[phase.ordinal()] = true;
+    lapStart = now;
+  }
+
+  /** Stops the clock; the total includes any phase that did not complete. */
+  public void stop() {
+    if (enabled) {
+      end = System.nanoTime();
+    }
+  }
+
+  /** Whether the request completed the given phase. */
+  public boolean wasRecorded(Phase phase) {
+    return recorded[phase.ordinal()];
+  }
+
+  public long getNanos(Phase phase) {
+    return elapsed[phase.ordinal()];
+  }
+
+  public long getTotalNanos() {
+    return end - start;
+  }
+}
@@ -0,0 +1,409 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.CacheLoader;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+/**
+ * A cache of XSDs retrieved via http(s).
+ *
+ * <p>An entry older than the refresh interval is refreshed in the background on the next access,
+ * while requests continue to get the last good copy. The refresh is a conditional GET, using the
+ * ETag and Last-Modified values from the previous response. If the refresh fails, the last good copy
+ * is kept. If it returns different content, the change listener is told, so that whatever was built
+ * from the previous copy can be rebuilt.
+ *
+ * <p>A failed initial fetch is not cached as content. Instead the failure is remembered, and further
+ * requests for the same URL fail immediately until a backoff period passes. The backoff doubles
+ * with each consecutive failure, up to a limit.
+ *
+ * <p>{@link #getAll} retrieves the URLs that are not cached concurrently, on a bounded pool of
+ * threads, so the caller waits for the slowest fetch rather than for the sum of them, and never
+ * past the deadline. When the pool and its queue are full, further fetches are not queued; they are
+ * reported as failures. A fetch that misses the deadline is not stopped: it runs until it completes
+ * or its read timeout passes, and if it succeeds, the content is cached for later requests.
+ */
+public class UrlResourceCache {
+  public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
+  public static final int DEFAULT_READ_TIMEOUT_MILLIS = 10000;
+  public static final long DEFAULT_DEADLINE_MILLIS = 15000;
+  private static final int FETCH_THREADS = 8;
+  private static final int FETCH_QUEUE_SIZE = 64;
+  private static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(5);
+  // how long a retrieved XSD is served before it is checked for changes
+  public static final long REFRESH_AFTER_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+  private static final ExecutorService refreshExecutor =
+      Executors.newFixedThreadPool(
+          2,
+          r -> {
+            Thread t = new Thread(r, "xsd-url-refresh");
+            t.setDaemon(true);
+            return t;
+          });
+
+  private static final ExecutorService sharedFetchExecutor =
+      newFetchExecutor(FETCH_THREADS, FETCH_QUEUE_SIZE);
+
+  public static class Settings {
+    public final int connectTimeoutMillis;
+    public final int readTimeoutMillis;
+    // the overall time allowed for getAll
+    public final long deadlineMillis;
+
+    public Settings(int connectTimeoutMillis, int readTimeoutMillis) {
+      this(connectTimeoutMillis, readTimeoutMillis, DEFAULT_DEADLINE_MILLIS);
+    }
+
+    public Settings(int connectTimeoutMillis, int readTimeoutMillis, long deadlineMillis) {
+      this.connectTimeoutMillis = connectTimeoutMillis;
+      this.readTimeoutMillis = readTimeoutMillis;
+      this.deadlineMillis = deadlineMillis;
+    }
+
+    public static Settings defaults() {
+      return new Settings(DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS);
+    }
+  }
+
+  /**
+   * The outcome of {@link #getAll}: the content of each URL that was retrieved, and the reason for
+   * each that was not.
+   */
+  public static class Batch {
+    public final Map<String, XsdResource> resources = new HashMap<String, XsdResource>();
+    public final Map<String, String> failures = new TreeMap<String, String>();
+  }
+
+  static class Resource {
+    final XsdResource content;
+    final String etag;
+    final String lastModified;
+    // the settings used for the initial fetch apply to refreshes too
+    final Settings settings;
+
+    Resource(XsdResource content, String etag, String lastModified, Settings settings) {
+      this.content = content;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.settings = settings;
+    }
+  }
+
+  static class Failure {
+    final String message;
+    final int attempts;
+    final long retryAfter;
+
+    Failure(String message, int attempts, long retryAfter) {
+      this.message = message;
+      this.attempts = attempts;
+      this.retryAfter = retryAfter;
+    }
+  }
+
+  private final LoadingCache<String, Resource> resources;
+  private final Cache<String, Failure> failures;
+  private final long initialBackoffMillis;
+  private final ExecutorService fetchExecutor;
+  // told the URL and the previous content when a refresh finds that the content has changed
+  private final BiConsumer<String, XsdResource> changeListener;
+
+  public UrlResourceCache() {
+    this((url, previous) -> {});
+  }
+
+  public UrlResourceCache(BiConsumer<String, XsdResource> changeListener) {
+    this(
+        REFRESH_AFTER_MILLIS,
+        TimeUnit.MINUTES.toMillis(60),
+        1000L,
+        refreshExecutor,
+        sharedFetchExecutor,
+        changeListener);
+  }
+
+  UrlResourceCache(
+      long refreshAfterMillis,
+      long expireAfterMillis,
+      long initialBackoffMillis,
+      Executor executor) {
+    this(
+        refreshAfterMillis,
+        expireAfterMillis,
+        initialBackoffMillis,
+        executor,
+        sharedFetchExecutor,
+        (url, previous) -> {});
+  }
+
+  UrlResourceCache(
+      long refreshAfterMillis,
+      long expireAfterMillis,
+      long initialBackoffMillis,
+      Executor executor,
+      ExecutorService fetchExecutor,
+      BiConsumer<String, XsdResource> changeListener) {
+    this.initialBackoffMillis = initialBackoffMillis;
+    this.fetchExecutor = fetchExecutor;
+    this.changeListener = changeListener;
+    this.failures =
+        Caffeine.newBuilder()
+            .maximumSize(10000)
+            .expireAfterWrite(MAX_BACKOFF_MILLIS * 2, TimeUnit.MILLISECONDS)
+            .build();
+    this.resources =
+        Caffeine.newBuilder()
+            .maximumWeight(CacheBudget.RESOURCE_BYTES)
+            .weigher((String key, Resource value) -> CacheBudget.weigh(key, value.content.length()))
+            .refreshAfterWrite(refreshAfterMillis, TimeUnit.MILLISECONDS)
+            .expireAfterAccess(expireAfterMillis, TimeUnit.MILLISECONDS)
+            .executor(executor)
+            .removalListener(this::onRemoval)
+            .recordStats()
+            .build(
+                new CacheLoader<String, Resource>() {
+                  public Resource load(String key) throws IOException {
+                    return fetch(key, Settings.defaults(), null);
+                  }
+
+                  public Resource reload(String key, Resource oldValue) {
+                    try {
+                      return fetch(key, oldValue.settings, oldValue);
+                    } catch (IOException exc) {
+                      // keep serving the last good copy
+                      return oldValue;
+                    }
+                  }
+                });
+  }
+
+  // A pool for getAll, which rejects work rather than queueing it without bound, or running it on
+  // the requesting thread, where it would not be subject to the deadline.
+  static ExecutorService newFetchExecutor(int threads, int queueSize) {
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            threads,
+            threads,
+            60L,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(queueSize),
+            r -> {
+              Thread t = new Thread(r, "xsd-url-fetch");
+              t.setDaemon(true);
+              return t;
+            },
+            new ThreadPoolExecutor.AbortPolicy());
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * Returns the content at the URL, fetching it if it is not cached. The fetch runs on the calling
+   * thread, bounded only by the connect and read timeouts; use {@link #getAll} for a deadline.
+   */
+  public XsdResource get(String url, Settings settings) {
+    Failure failure = failures.getIfPresent(url);
+    if (failure != null && System.currentTimeMillis() < failure.retryAfter) {
+      throw new IllegalStateException(
+          String.format("cannot retrieve %s: %s (will retry later)", url, failure.message));
+    }
+    try {
+      Resource resource =
+          resources.get(
+              url,
+              key -> {
+                try {
+                  return fetch(key, settings, null);
+                } catch (IOException exc) {
+                  throw new CompletionException(exc);
+                }
+              });
+      if (failure != null) {
+        failures.invalidate(url);
+      }
+      return resource.content;
+    } catch (CompletionException exc) {
+      String message = exc.getCause().toString();
+      int attempts = (failure == null) ? 1 : failure.attempts + 1;
+      long backoff =
+          Math.min(initialBackoffMillis << Math.min(attempts - 1, 20), MAX_BACKOFF_MILLIS);
+      failures.put(url, new Failure(message, attempts, System.currentTimeMillis() + backoff));
+      throw new IllegalStateException(String.format("cannot retrieve %s: %s", url, message));
+    }
+  }
+
+  /**
+   * Returns the content at each of the URLs. Those that are not cached are fetched concurrently.
+   * A fetch that has not completed when the deadline in the settings passes is reported as a
+   * failure, as is any fetch that fails or that the pool has no room for; the other URLs are still
+   * returned.
+   */
+  public Batch getAll(Collection<String> urls, Settings settings) {
+    Batch batch = new Batch();
+    Map<String, Future<XsdResource>> pending = new LinkedHashMap<String, Future<XsdResource>>();
+    for (String url : urls) {
+      Resource cached = resources.getIfPresent(url);
+      if (cached != null) {
+        batch.resources.put(url, cached.content);
+      } else if (!pending.containsKey(url)) {
+        pending.put(url, null);
+      }
+    }
+    // even a single URL is fetched on the pool, so that the deadline applies to it
+    Iterator<Map.Entry<String, Future<XsdResource>>> it = pending.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<String, Future<XsdResource>> entry = it.next();
+      String url = entry.getKey();
+      try {
+        entry.setValue(CompletableFuture.supplyAsync(() -> get(url, settings), fetchExecutor));
+      } catch (RejectedExecutionException exc) {
+        it.remove();
+        batch.failures.put(
+            url, String.format("cannot retrieve %s: too many fetches in progress", url));
+      }
+    }
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(settings.deadlineMillis);
+    for (Map.Entry<String, Future<XsdResource>> entry : pending.entrySet()) {
+      try {
+        long remaining = Math.max(0, deadline - System.nanoTime());
+        batch.resources.put(
+            entry.getKey(), entry.getValue().get(remaining, TimeUnit.NANOSECONDS));
+      } catch (TimeoutException exc) {
+        // the fetch keeps running; cancelling the future would not interrupt the read
+        batch.failures.put(
+            entry.getKey(),
+            String.format(
+                "cannot retrieve %s: no response within %d ms",
+                entry.getKey(), settings.deadlineMillis));
+      } catch (ExecutionException exc) {
+        batch.failures.put(entry.getKey(), exc.getCause().getMessage());
+      } catch (InterruptedException exc) {
+        Thread.currentThread().interrupt();
+        batch.failures.put(entry.getKey(), "cannot retrieve " + entry.getKey() + ": interrupted");
+      }
+    }
+    return batch;
+  }
+
+  // visible for testing
+  // Called once a refreshed copy is in place, so what the listener rebuilds cannot see the old one.
+  private void onRemoval(String url, Resource previous, RemovalCause cause) {
+    if (cause == RemovalCause.REPLACED && previous != null) {
+      Resource current = resources.asMap().get(url);
+      if (current != null && !current.content.getDigest().equals(previous.content.getDigest())) {
+        changeListener.accept(url, previous.content);
+      }
+    }
+  }
+
+  void refresh(String url) {
+    resources.refresh(url);
+  }
+
+  /**
+   * Removes the URL from the cache, along with any failure remembered for it, so the next request
+   * retrieves it again. Returns the content that was removed, or null if none was cached.
+   */
+  public XsdResource invalidate(String url) {
+    Resource removed = resources.asMap().remove(url);
+    failures.invalidate(url);
+    return (removed == null) ? null : removed.content;
+  }
+
+  public CacheDiagnostics.Stats diagnostics() {
+    return CacheDiagnostics.of(resources);
+  }
+
+  public void invalidateAll() {
+    resources.invalidateAll();
+    failures.invalidateAll();
+  }
+
+  private Resource fetch(String url, Settings settings, Resource previous) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    connection.setConnectTimeout(settings.connectTimeoutMillis);
+    connection.setReadTimeout(settings.readTimeoutMillis);
+    if (previous != null) {
+      if (previous.etag != null) {
+        connection.setRequestProperty("If-None-Match", previous.etag);
+      }
+      if (previous.lastModified != null) {
+        connection.setRequestProperty("If-Modified-Since", previous.lastModified);
+      }
+    }
+    try {
+      int status = connection.getResponseCode();
+      if (status == HttpURLConnection.HTTP_NOT_MODIFIED && previous != null) {
+        return previous;
+      }
+      if (status < 200 || status > 299) {
+        throw new IOException("status " + status);
+      }
+      XsdResource content;
+      try (InputStream in = connection.getInputStream()) {
+        content = XsdResource.of(readAllBytes(in));
+      }
+      if (content.isEmpty()) {
+        throw new IOException("empty response");
+      }
+      return new Resource(
+          content,
+          connection.getHeaderField("ETag"),
+          connection.getHeaderField("Last-Modified"),
+          settings);
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  private static byte[] readAllBytes(InputStream in) throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    int nRead;
+    byte[] data = new byte[2048];
+    while ((nRead = in.read(data, 0, data.length)) != -1) {
+      buffer.write(data, 0, nRead);
+    }
+    return buffer.toByteArray();
+  }
+}
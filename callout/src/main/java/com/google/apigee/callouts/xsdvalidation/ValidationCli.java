@@ -0,0 +1,206 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Validates the XML files in one or more directory trees against a schema, in parallel, with the
+ * {@link ValidationEngine}. Reports each file that is not valid, and then the number of files per
+ * second. The exit status is 0 if all the files are valid, 1 if any is not, and 2 if the arguments
+ * or the schema are not usable.
+ *
+ * <pre>
+ * java -cp apigee-custom-xsd-validation-20211021.jar:lib/* \
+ *   com.google.apigee.callouts.xsdvalidation.ValidationCli \
+ *   --schema orders.xsd --import common-types.xsd=xsd/common-types.xsd \
+ *   [--threads 8] [--subtree soap-body] [--max-errors 1] [--use-dom-source] [--quiet] dir...
+ * </pre>
+ */
+public class ValidationCli {
+  private static final String USAGE =
+      "usage: ValidationCli --schema <xsd> [--import <schemaLocation>=<xsd>]... [--threads <n>]\n"
+          + "         [--subtree <path>] [--max-errors <n>] [--use-dom-source] [--quiet]"
+          + " <directory>...";
+
+  public static void main(String[] args) {
+    System.exit(run(args, System.out));
+  }
+
+  static int run(String[] args, PrintStream out) {
+    Path schema = null;
+    Map<String, XsdResource> imports = new HashMap<String, XsdResource>();
+    int threads = Runtime.getRuntime().availableProcessors();
+    SubtreePath subtree = null;
+    int maxErrors = 0;
+    boolean useDomSource = false;
+    boolean quiet = false;
+    List<Path> roots = new ArrayList<Path>();
+    try {
+      for (int i = 0; i < args.length; i++) {
+        String arg = args[i];
+        if (arg.equals("--schema")) {
+          schema = Paths.get(valueOf(args, ++i));
+        } else if (arg.equals("--import")) {
+          String[] parts = valueOf(args, ++i).split("=", 2);
+          if (parts.length != 2) {
+            throw new IllegalArgumentException("invalid import " + args[i]);
+          }
+          imports.put(parts[0], XsdResource.of(Files.readAllBytes(Paths.get(parts[1]))));
+        } else if (arg.equals("--threads")) {
+          threads = Integer.parseInt(valueOf(args, ++i));
+        } else if (arg.equals("--subtree")) {
+          subtree = SubtreePath.parse(valueOf(args, ++i));
+        } else if (arg.equals("--max-errors")) {
+          maxErrors = Integer.parseInt(valueOf(args, ++i));
+        } else if (arg.equals("--use-dom-source")) {
+          useDomSource = true;
+        } else if (arg.equals("--quiet")) {
+          quiet = true;
+        } else if (arg.startsWith("--")) {
+          throw new IllegalArgumentException("unknown option " + arg);
+        } else {
+          roots.add(Paths.get(arg));
+        }
+      }
+      if (schema == null || roots.isEmpty() || threads < 1) {
+        throw new IllegalArgumentException("a schema and at least one directory are required");
+      }
+    } catch (Exception exc) {
+      out.println(exc.getMessage());
+      out.println(USAGE);
+      return 2;
+    }
+
+    CompiledSchema compiled;
+    List<Path> files;
+    long compileStart = System.nanoTime();
+    try {
+      UrlResourceCache urlResources = new UrlResourceCache();
+      compiled =
+          SchemaCache.get(
+                  XsdResource.of(Files.readAllBytes(schema)),
+                  imports.isEmpty() ? null : imports,
+                  ref -> urlResources.get(ref, UrlResourceCache.Settings.defaults()),
+                  new ValidatorPool.Config(threads, ValidatorPool.ExhaustedAction.CREATE, 0),
+                  false)
+              .compiled;
+    } catch (Exception exc) {
+      out.println("cannot compile " + schema + ": " + exc.getMessage());
+      return 2;
+    }
+    long compileNanos = System.nanoTime() - compileStart;
+    try {
+      files = findXmlFiles(roots);
+    } catch (Exception exc) {
+      out.println("cannot list the files: " + exc);
+      return 2;
+    }
+
+    ValidationEngine engine = new ValidationEngine(useDomSource, true, subtree);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    long start = System.nanoTime();
+    int invalid = 0;
+    try {
+      List<Future<ValidationResult>> results = new ArrayList<Future<ValidationResult>>();
+      for (Path file : files) {
+        final int limit = maxErrors;
+        results.add(executor.submit(() -> validate(engine, compiled, file, limit)));
+      }
+      for (int i = 0; i < files.size(); i++) {
+        ValidationResult result = results.get(i).get();
+        if (!result.valid) {
+          invalid++;
+          if (!quiet) {
+            report(out, files.get(i), result);
+          }
+        }
+      }
+    } catch (Exception exc) {
+      out.println("validation failed: " + exc);
+      return 2;
+    } finally {
+      executor.shutdown();
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    out.printf(
+        "%d files, %d valid, %d not valid, in %.3f s (%.1f files/s, %d threads);"
+            + " schema compiled in %.3f s%n",
+        files.size(),
+        files.size() - invalid,
+        invalid,
+        seconds,
+        (seconds > 0) ? files.size() / seconds : 0.0,
+        threads,
+        compileNanos / 1e9);
+    return (invalid == 0) ? 0 : 1;
+  }
+
+  private static String valueOf(String[] args, int i) {
+    if (i >= args.length) {
+      throw new IllegalArgumentException("missing value for " + args[i - 1]);
+    }
+    return args[i];
+  }
+
+  private static List<Path> findXmlFiles(List<Path> roots) throws Exception {
+    List<Path> files = new ArrayList<Path>();
+    for (Path root : roots) {
+      try (Stream<Path> walk = Files.walk(root)) {
+        files.addAll(
+            walk.filter(p -> Files.isRegularFile(p) && p.toString().endsWith(".xml"))
+                .sorted()
+                .collect(Collectors.toList()));
+      }
+    }
+    return files;
+  }
+
+  private static ValidationResult validate(
+      ValidationEngine engine, CompiledSchema compiled, Path file, int maxErrors) {
+    try (InputStream in = Files.newInputStream(file)) {
+      return engine.validate(compiled, XmlInput.of(in), null, null, maxErrors);
+    } catch (Exception exc) {
+      return ValidationResult.failed(exc.toString());
+    }
+  }
+
+  private static void report(PrintStream out, Path file, ValidationResult result) {
+    if (result.failure != null) {
+      out.printf("%s: %s%n", file, result.failure);
+      return;
+    }
+    out.printf("%s: not valid%n", file);
+    for (int i = 0; i < result.errors.size(); i++) {
+      out.printf("  %d. %s%n", i + 1, result.errors.get(i));
+    }
+    for (String path : result.paths) {
+      out.printf("  at %s%n", path);
+    }
+  }
+}
@@ -0,0 +1,222 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+import java.io.IOException;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXSource;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+/**
+ * Validates documents against compiled schemas. This holds the validation logic of the callout,
+ * with no dependency on the message flow API, so that it can also run in batch jobs, pre-deploy
+ * checks and benchmarks. An instance holds only settings, and is safe to use from many threads.
+ *
+ * <p>Validating a document takes two steps, so that a caller can pick the schema by the root
+ * element: {@link #prepare} reads the document up to the root element if needed, and {@link
+ * #validate(CompiledSchema, Prepared, CustomValidationErrorHandler)} validates it. The one-step
+ * {@link #validate(CompiledSchema, XmlInput, Pair, PayloadLimits, int)} does both, and reports any
+ * failure in the result.
+ */
+public class ValidationEngine {
+  private final boolean useDomSource;
+  private final boolean deferNodeExpansion;
+  private final SubtreePath subtree;
+
+  /**
+   * With useDomSource, each document is parsed into a DOM before it is validated; otherwise it is
+   * validated as it is parsed. The subtree path, if not null, selects the element to validate.
+   */
+  public ValidationEngine(boolean useDomSource, boolean deferNodeExpansion, SubtreePath subtree) {
+    this.useDomSource = useDomSource;
+    this.deferNodeExpansion = deferNodeExpansion;
+    this.subtree = subtree;
+  }
+
+  /** A document that is ready to validate. */
+  public static class Prepared {
+    public final Source source;
+    // the root element, if it was needed to check or dispatch on; otherwise null
+    public final QName root;
+
+    Prepared(Source source, QName root) {
+      this.source = source;
+      this.root = root;
+    }
+
+    /** Detaches the parser from this document. Call this once the document has been validated. */
+    public void release() {
+      ElementPathFilter filter = ElementPathFilter.of(source);
+      if (filter != null) {
+        filter.release();
+      }
+    }
+  }
+
+  /**
+   * Prepares the input for validation. When a root element is required, it is checked here, so
+   * that a document with the wrong root fails fast; in streaming mode, this reads only up to the
+   * first element. With needRoot, the root element is returned, for the caller to dispatch on.
+   */
+  public Prepared prepare(
+      XmlInput in,
+      Pair<String, String> requiredRoot,
+      boolean needRoot,
+      PayloadLimits limits,
+      Timings timings)
+      throws IOException, SAXException, XMLStreamException {
+    if (limits != null) {
+      in = limits.apply(in);
+    }
+    needRoot = needRoot || requiredRoot != null;
+    if (useDomSource) {
+      Document doc =
+          (limits != null && limits.hasStructuralLimits())
+              ? DocumentBuilders.parse(in.toInputSource(), limits)
+              : DocumentBuilders.parse(in.toInputSource(), deferNodeExpansion);
+      timings.lap(Timings.Phase.PARSE);
+      QName root = null;
+      if (needRoot) {
+        root = rootOf(doc);
+        if (requiredRoot != null) {
+          verifyRequiredRoot(requiredRoot.left, requiredRoot.right, root);
+        }
+        timings.lap(Timings.Phase.ROOT_CHECK);
+      }
+      if (subtree != null) {
+        Element selected = subtree.select(doc);
+        if (selected == null) {
+          throw new IllegalStateException("no element matches the subtree path " + subtree);
+        }
+        return new Prepared(new DOMSource(selected), root);
+      }
+      return new Prepared(new DOMSource(doc), root);
+    }
+    QName root = null;
+    if (needRoot) {
+      RootElementPeeker.Result peeked = RootElementPeeker.peek(in);
+      root = peeked.root;
+      if (requiredRoot != null) {
+        verifyRequiredRoot(requiredRoot.left, requiredRoot.right, root);
+      }
+      timings.lap(Timings.Phase.ROOT_CHECK);
+      in = peeked.input;
+    }
+    // parse through a filter that tracks the current element, for reporting failing paths.
+    // In this mode the document is parsed as it is validated.
+    Source source = ElementPathFilter.newSource(in.toInputSource(), limits, subtree);
+    timings.lap(Timings.Phase.PARSE);
+    return new Prepared(source, root);
+  }
+
+  /**
+   * Validates a prepared document with a pooled Validator. The errors are reported to the handler
+   * as they are found. Throws if the document cannot be read, for example if it is not
+   * well-formed; an invalid document is not an exception.
+   */
+  public ValidationResult validate(
+      CompiledSchema schema, Prepared doc, CustomValidationErrorHandler errorHandler)
+      throws Exception {
+    ValidatorPool pool = schema.validatorPool;
+    ValidatorPool.Lease lease = pool.checkout(errorHandler);
+    try {
+      errorHandler.setValidator(lease.validator);
+      errorHandler.setPathFilter(ElementPathFilter.of(doc.source));
+      try {
+        lease.validator.validate(doc.source);
+      } catch (SAXException exc) {
+        // reaching the error limit is an outcome of validation, not a failure
+        if (!errorHandler.stoppedEarly()) {
+          throw exc;
+        }
+      }
+    } finally {
+      pool.checkin(lease);
+    }
+    return ValidationResult.of(errorHandler, (subtree == null) ? null : selectedElement(doc));
+  }
+
+  /**
+   * Prepares and validates one document, with its own payload limits. A document that cannot be
+   * validated, for example because it is not well-formed or crosses a limit, is reported as a
+   * failure in the result rather than thrown.
+   */
+  public ValidationResult validate(
+      CompiledSchema schema,
+      XmlInput in,
+      Pair<String, String> requiredRoot,
+      PayloadLimits limits,
+      int maxErrors) {
+    if (in == null) {
+      return ValidationResult.failed("the document does not appear to be XML");
+    }
+    PayloadLimits ownLimits = (limits == null) ? null : limits.copy();
+    Prepared doc = null;
+    try {
+      doc = prepare(in, requiredRoot, false, ownLimits, Timings.DISABLED);
+      return validate(schema, doc, new CustomValidationErrorHandler(null, false, maxErrors));
+    } catch (Exception exc) {
+      return ValidationResult.failed(
+          (ownLimits != null && ownLimits.getExceeded() != null)
+              ? ownLimits.describeExceeded()
+              : exc.toString().replaceAll("\\n", " "));
+    } finally {
+      if (doc != null) {
+        doc.release();
+      }
+    }
+  }
+
+  // the element that the subtree path selected, or null if none was selected
+  private static QName selectedElement(Prepared doc) {
+    if (doc.source instanceof DOMSource) {
+      Node node = ((DOMSource) doc.source).getNode();
+      return (node instanceof Element)
+          ? new QName(node.getNamespaceURI(), node.getLocalName())
+          : null;
+    }
+    XMLReader reader = ((SAXSource) doc.source).getXMLReader();
+    return (reader instanceof SubtreePath.Filter)
+        ? ((SubtreePath.Filter) reader).getSelected()
+        : null;
+  }
+
+  static QName rootOf(Document doc) {
+    Element elt = (Element) doc.getDocumentElement();
+    return (elt == null) ? null : new QName(elt.getNamespaceURI(), elt.getLocalName());
+  }
+
+  public static void verifyRequiredRoot(String expectedName, String expectedNsuri, QName root) {
+    boolean invalid = false;
+    if (root == null || !expectedName.equals(root.getLocalPart())) {
+      invalid = true;
+    } else if ((expectedNsuri == null || expectedNsuri.equals(""))
+        && !root.getNamespaceURI().equals("")) {
+      invalid = true;
+    } else if (expectedNsuri != null && !root.getNamespaceURI().equals(expectedNsuri)) {
+      invalid = true;
+    }
+    if (invalid) {
+      throw new IllegalStateException("unacceptable root element");
+    }
+  }
+}
@@ -0,0 +1,66 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+import java.util.Collections;
+import java.util.List;
+import javax.xml.namespace.QName;
+
+/** The outcome of validating one document with the {@link ValidationEngine}. */
+public class ValidationResult {
+  public final boolean valid;
+  public final int errorCount;
+  // true if validation stopped because the error limit was reached
+  public final boolean stoppedEarly;
+  // the first few error messages, and the paths of the failing elements
+  public final List<String> errors;
+  public final List<String> paths;
+  // the element that the subtree path selected, or null if there is no subtree path
+  public final QName subtreeRoot;
+  // why the document could not be validated, for example because it is not XML; null if it was
+  public final String failure;
+
+  private ValidationResult(
+      boolean valid,
+      int errorCount,
+      boolean stoppedEarly,
+      List<String> errors,
+      List<String> paths,
+      QName subtreeRoot,
+      String failure) {
+    this.valid = valid;
+    this.errorCount = errorCount;
+    this.stoppedEarly = stoppedEarly;
+    this.errors = (errors == null) ? Collections.emptyList() : errors;
+    this.paths = (paths == null) ? Collections.emptyList() : paths;
+    this.subtreeRoot = subtreeRoot;
+    this.failure = failure;
+  }
+
+  static ValidationResult of(CustomValidationErrorHandler errorHandler, QName subtreeRoot) {
+    return new ValidationResult(
+        errorHandler.isValid(),
+        errorHandler.getErrorCount(),
+        errorHandler.stoppedEarly(),
+        errorHandler.getExceptionList(),
+        errorHandler.getPathList(),
+        subtreeRoot,
+        null);
+  }
+
+  public static ValidationResult failed(String failure) {
+    return new ValidationResult(false, 0, false, null, null, null, failure);
+  }
+}
@@ -0,0 +1,162 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import javax.xml.validation.Schema;
+import javax.xml.validation.Validator;
+import org.xml.sax.ErrorHandler;
+
+/**
+ * A bounded pool of Validator instances for one compiled Schema. A Validator is not thread-safe,
+ * so each one is leased to a single request at a time, then reset and returned to the pool.
+ *
+ * <p>Idle validators are held in a small number of stripes, and a thread prefers the stripe
+ * selected by its id, to keep contention low when many threads check out and return validators at
+ * the same time. The total number of pooled validators is bounded by a semaphore; what happens
+ * when all of them are leased is determined by the {@link ExhaustedAction}.
+ */
+public class ValidatorPool {
+  public static final int DEFAULT_SIZE = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+  public static final long DEFAULT_WAIT_MILLIS = 1000L;
+
+  public enum ExhaustedAction {
+    // create a transient validator that is discarded after use
+    CREATE,
+    // wait for a validator to be returned to the pool, up to the configured limit
+    WAIT,
+    // fail immediately
+    FAIL
+  }
+
+  public static class Config {
+    public final int size;
+    public final ExhaustedAction exhaustedAction;
+    public final long waitMillis;
+
+    public Config(int size, ExhaustedAction exhaustedAction, long waitMillis) {
+      if (size < 1) {
+        throw new IllegalStateException("configuration error: validator pool size must be positive");
+      }
+      this.size = size;
+      this.exhaustedAction = exhaustedAction;
+      this.waitMillis = waitMillis;
+    }
+
+    public static Config defaults() {
+      return new Config(DEFAULT_SIZE, ExhaustedAction.CREATE, DEFAULT_WAIT_MILLIS);
+    }
+
+    /** Distinguishes this configuration from any other, in cache keys. */
+    String key() {
+      return size + "," + exhaustedAction + "," + waitMillis;
+    }
+  }
+
+  /** A validator on loan from the pool. Return it with {@link ValidatorPool#checkin(Lease)}. */
+  public static class Lease {
+    public final Validator validator;
+    final boolean pooled;
+
+    Lease(Validator validator, boolean pooled) {
+      this.validator = validator;
+      this.pooled = pooled;
+    }
+  }
+
+  private final Schema schema;
+  private final Config config;
+  private final Semaphore permits;
+  private final ArrayBlockingQueue<Validator>[] stripes;
+
+  @SuppressWarnings("unchecked")
+  public ValidatorPool(Schema schema, Config config) {
+    this.schema = schema;
+    this.config = config;
+    this.permits = new Semaphore(config.size);
+    int stripeCount = Math.min(config.size, Runtime.getRuntime().availableProcessors());
+    this.stripes = new ArrayBlockingQueue[stripeCount];
+    for (int i = 0; i < stripeCount; i++) {
+      // each stripe can hold every validator, so a return never fails for lack of room
+      stripes[i] = new ArrayBlockingQueue<Validator>(config.size);
+    }
+  }
+
+  public Config getConfig() {
+    return config;
+  }
+
+  /** The number of validators currently leased from the pool, not counting transient ones. */
+  public int getLeasedCount() {
+    return config.size - permits.availablePermits();
+  }
+
+  public Lease checkout(ErrorHandler errorHandler) throws InterruptedException {
+    Lease lease = acquire();
+    lease.validator.setErrorHandler(errorHandler);
+    return lease;
+  }
+
+  private Lease acquire() throws InterruptedException {
+    if (permits.tryAcquire()) {
+      return new Lease(pooledValidator(), true);
+    }
+    switch (config.exhaustedAction) {
+      case WAIT:
+        if (permits.tryAcquire(config.waitMillis, TimeUnit.MILLISECONDS)) {
+          return new Lease(pooledValidator(), true);
+        }
+        throw new IllegalStateException(
+            String.format("validator pool exhausted after waiting %dms", config.waitMillis));
+      case FAIL:
+        throw new IllegalStateException("validator pool exhausted");
+      default:
+        return new Lease(schema.newValidator(), false);
+    }
+  }
+
+  private Validator pooledValidator() {
+    int home = homeStripe();
+    for (int i = 0; i < stripes.length; i++) {
+      Validator validator = stripes[(home + i) % stripes.length].poll();
+      if (validator != null) {
+        return validator;
+      }
+    }
+    // the permit guarantees we stay within the bound
+    return schema.newValidator();
+  }
+
+  public void checkin(Lease lease) {
+    if (!lease.pooled) {
+      return;
+    }
+    try {
+      // restores the original configuration, which also unbinds the error handler
+      lease.validator.reset();
+      stripes[homeStripe()].offer(lease.validator);
+    } catch (RuntimeException exc) {
+      // a validator that cannot be reset is simply dropped; a new one will be created on demand
+    } finally {
+      permits.release();
+    }
+  }
+
+  private int homeStripe() {
+    return (int) (Thread.currentThread().getId() % stripes.length);
+  }
+}
@@ -0,0 +1,137 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+import java.io.InputStream;
+import java.io.Reader;
+import org.xml.sax.InputSource;
+
+/**
+ * The document to validate, as the parser will read it. A message payload is read directly from
+ * the message's content stream. A payload held in a String, or any other CharSequence, is read
+ * through a Reader over the original characters, starting after any leading whitespace, so the
+ * payload is never copied or encoded into bytes.
+ */
+public class XmlInput {
+  private final InputStream stream;
+  private final CharSequence chars;
+  private final int offset;
+
+  private XmlInput(InputStream stream, CharSequence chars, int offset) {
+    this.stream = stream;
+    this.chars = chars;
+    this.offset = offset;
+  }
+
+  public static XmlInput of(InputStream stream) {
+    return new XmlInput(stream, null, 0);
+  }
+
+  /** Returns null if the characters, after leading whitespace, do not start with '<'. */
+  public static XmlInput of(CharSequence chars) {
+    int start = 0;
+    while (start < chars.length() && Character.isWhitespace(chars.charAt(start))) {
+      start++;
+    }
+    if (start == chars.length() || chars.charAt(start) != '<') {
+      return null;
+    }
+    return new XmlInput(null, chars, start);
+  }
+
+  /**
+   * True if the input can be read more than once. Character input can; a stream can be read only
+   * once.
+   */
+  public boolean isRepeatable() {
+    return chars != null;
+  }
+
+  /** The number of characters to read, for character input; -1 for a stream. */
+  public int length() {
+    return (chars != null) ? chars.length() - offset : -1;
+  }
+
+  /** The characters to read, as a String, for character input; null for a stream. */
+  public String getContent() {
+    return (chars != null) ? chars.subSequence(offset, chars.length()).toString() : null;
+  }
+
+  public InputStream getStream() {
+    return stream;
+  }
+
+  /** Returns a new reader over the characters, or null for stream input. */
+  public Reader newReader() {
+    return (chars != null) ? new CharSequenceReader(chars, offset) : null;
+  }
+
+  public InputSource toInputSource() {
+    return (chars != null) ? new InputSource(newReader()) : new InputSource(stream);
+  }
+
+  static class CharSequenceReader extends Reader {
+    private final CharSequence chars;
+    private final String string;
+    private int position;
+
+    CharSequenceReader(CharSequence chars, int offset) {
+      this.chars = chars;
+      this.string = (chars instanceof String) ? (String) chars : null;
+      this.position = offset;
+    }
+
+    @Override
+    public int read() {
+      return (position < chars.length()) ? chars.charAt(position++) : -1;
+    }
+
+    @Override
+    public int read(char[] buffer, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      int n = Math.min(len, chars.length() - position);
+      if (n <= 0) {
+        return -1;
+      }
+      if (string != null) {
+        // a bulk copy into the parser's buffer
+        string.getChars(position, position + n, buffer, off);
+      } else {
+        for (int i = 0; i < n; i++) {
+          buffer[off + i] = chars.charAt(position + i);
+        }
+      }
+      position += n;
+      return n;
+    }
+
+    @Override
+    public long skip(long n) {
+      long skipped = Math.max(0, Math.min(n, chars.length() - position));
+      position += (int) skipped;
+      return skipped;
+    }
+
+    @Override
+    public boolean ready() {
+      return true;
+    }
+
+    @Override
+    public void close() {}
+  }
+}
@@ -0,0 +1,155 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * The content of one XSD, held as bytes. The content is encoded, and its digest and encoding are
+ * computed, once, when the resource is created; after that, every read of the XSD is a stream over
+ * the same array, with no copying. Instances are immutable and can be shared across threads.
+ *
+ * <p>Content given as a string is already decoded, so it is held as UTF-8, and any encoding named
+ * in its XML declaration is ignored.
+ */
+public class XsdResource {
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+  private static final Pattern encodingDeclPattern =
+      Pattern.compile("^<\\?xml[^>]*\\sencoding\\s*=\\s*[\"']([A-Za-z][A-Za-z0-9._-]*)[\"']");
+
+  // never modified, and never handed out
+  private final byte[] bytes;
+  private final int offset;
+  private final String encoding;
+  private final String digest;
+  private final boolean text;
+
+  private XsdResource(byte[] bytes, boolean text) {
+    this.encoding = text ? "UTF-8" : detectEncoding(bytes);
+    this.text = text;
+    // Leading whitespace before the XML declaration makes the document not well-formed. Skip it,
+    // as the callout has always trimmed XSD content, if the encoding is ASCII-compatible.
+    int start = 0;
+    if (!encoding.startsWith("UTF-16")) {
+      while (start < bytes.length && isWhitespace(bytes[start])) {
+        start++;
+      }
+    }
+    this.bytes = bytes;
+    this.offset = start;
+    this.digest = computeDigest(bytes, start);
+  }
+
+  /** Takes ownership of the array; the caller must not modify it afterwards. */
+  public static XsdResource of(byte[] bytes) {
+    return new XsdResource(bytes, false);
+  }
+
+  public static XsdResource of(String content) {
+    return new XsdResource(content.getBytes(StandardCharsets.UTF_8), true);
+  }
+
+  public InputStream openStream() {
+    return new ByteArrayInputStream(bytes, offset, bytes.length - offset);
+  }
+
+  /**
+   * A source for compiling the content as a schema. A source over bytes carries no encoding, so
+   * content that was given as a string is read as characters.
+   */
+  public StreamSource newSource() {
+    if (text) {
+      return new StreamSource(new InputStreamReader(openStream(), StandardCharsets.UTF_8));
+    }
+    return new StreamSource(openStream());
+  }
+
+  /**
+   * The encoding from the byte order mark or the XML declaration; UTF-8 if neither is present, or
+   * if the content was given as a string.
+   */
+  public String getEncoding() {
+    return encoding;
+  }
+
+  /** A hex-encoded SHA-256 digest of the content. */
+  public String getDigest() {
+    return digest;
+  }
+
+  public int length() {
+    return bytes.length - offset;
+  }
+
+  public boolean isEmpty() {
+    return length() == 0;
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+  }
+
+  private static String detectEncoding(byte[] bytes) {
+    if (bytes.length >= 3
+        && (bytes[0] & 0xff) == 0xef
+        && (bytes[1] & 0xff) == 0xbb
+        && (bytes[2] & 0xff) == 0xbf) {
+      return "UTF-8";
+    }
+    if (bytes.length >= 2) {
+      if ((bytes[0] & 0xff) == 0xfe && (bytes[1] & 0xff) == 0xff) {
+        return "UTF-16BE";
+      }
+      if ((bytes[0] & 0xff) == 0xff && (bytes[1] & 0xff) == 0xfe) {
+        return "UTF-16LE";
+      }
+    }
+    // the XML declaration is ASCII, so the first bytes can be examined as ISO-8859-1
+    int i = 0;
+    while (i < bytes.length && isWhitespace(bytes[i])) {
+      i++;
+    }
+    String head = new String(bytes, i, Math.min(bytes.length - i, 200), StandardCharsets.ISO_8859_1);
+    Matcher m = encodingDeclPattern.matcher(head);
+    return m.find() ? m.group(1).toUpperCase() : "UTF-8";
+  }
+
+  private static String computeDigest(byte[] bytes, int offset) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      md.update(bytes, offset, bytes.length - offset);
+      return toHex(md.digest());
+    } catch (NoSuchAlgorithmException exc) {
+      throw new IllegalStateException(exc);
+    }
+  }
+
+  static String toHex(byte[] bytes) {
+    char[] chars = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      chars[i * 2] = HEX[(bytes[i] >> 4) & 0x0f];
+      chars[i * 2 + 1] = HEX[bytes[i] & 0x0f];
+    }
+    return new String(chars);
+  }
+}
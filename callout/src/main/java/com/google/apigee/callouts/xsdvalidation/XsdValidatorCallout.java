@@ -26,6 +26,13 @@
 //     <Property name='schema'>immediate-string-containing-xsd</Property>
 //     <Property name='schema'>{variable-containing-one-of-the-above}</Property>
 //
+//     <!-- or, one XSD per root element, in Clark notation; the callout dispatches on the root -->
+//     <Property name='root:{urn:example}order'>one-of-the-above</Property>
+//     <Property name='root:{urn:example}invoice'>one-of-the-above</Property>
+//
+//     <!-- or, a schema set declared in schema-catalog.properties in the jar -->
+//     <Property name='schema-set'>name-of-set</Property>
+//
 //     <!-- specify any dependent XSD with this syntax -->
 //     <Property name='schema:schemalocation.xsd'>one-of-the-above</Property>
 //
@@ -46,110 +53,93 @@ import com.apigee.flow.execution.IOIntensive;
 import com.apigee.flow.execution.spi.Execution;
 import com.apigee.flow.message.Message;
 import com.apigee.flow.message.MessageContext;
+import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.CacheLoader;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.LoadingCache;
 import com.google.apigee.callouts.CalloutBase;
-import java.io.ByteArrayInputStream;
+import com.google.apigee.callouts.PropertyTemplate;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringReader;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
-import javax.xml.XMLConstants;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Source;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamSource;
-import javax.xml.validation.Schema;
-import javax.xml.validation.SchemaFactory;
-import javax.xml.validation.Validator;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
+import java.util.stream.Stream;
+import javax.xml.namespace.QName;
 
 @IOIntensive
 public class XsdValidatorCallout extends CalloutBase implements Execution {
   private static final String varPrefix = "xsd_";
   private static final String urlReferencePatternString = "^(https?://)(.+)$";
   private static final Pattern urlReferencePattern = Pattern.compile(urlReferencePatternString);
-  private static final LoadingCache<String, String> fileResourceCache;
-  private static final LoadingCache<String, String> urlResourceCache;
-
-  private static final String EXTERNAL_GENERAL_ENTITIES =
-      "http://xml.org/sax/features/external-general-entities";
-  private static final String EXTERNAL_PARAMETER_ENTITIES =
-      "http://xml.org/sax/features/external-parameter-entities";
-  private static final String LOAD_EXTERNAL_DTD =
-      "http://apache.org/xml/features/nonvalidating/load-external-dtd";
+  private static final LoadingCache<String, XsdResource> fileResourceCache;
+  // XSDs given inline in the configuration, so each is encoded and digested just once
+  private static final Cache<String, XsdResource> inlineResourceCache;
+  // a changed http(s) XSD removes the schemas compiled from the previous copy
+  private static final UrlResourceCache urlResourceCache =
+      new UrlResourceCache((url, previous) -> invalidateDependents(previous.getDigest()));
+  private static final String CATALOG_RESOURCE = "/schema-catalog.properties";
+  // the schema sets declared in the jar, compiled when this class is loaded
+  private static final SchemaCatalog catalog;
+  private static final boolean grammarPoolAvailable = isXercesPresent();
 
   static {
     fileResourceCache =
         Caffeine.newBuilder()
-            // .concurrencyLevel(4)
-            .maximumSize(1048000)
+            .maximumWeight(CacheBudget.RESOURCE_BYTES)
+            .weigher((String key, XsdResource value) -> CacheBudget.weigh(key, value.length()))
             .expireAfterAccess(10, TimeUnit.MINUTES)
+            .recordStats()
             .build(
-                new CacheLoader<String, String>() {
-                  public String load(String key) throws IOException {
-                    InputStream in = null;
-                    String s = "";
-                    try {
-                      in = getResourceAsStream(key);
-                      byte[] fileBytes = new byte[in.available()];
-                      in.read(fileBytes);
-                      in.close();
-                      s = new String(fileBytes, StandardCharsets.UTF_8);
+                new CacheLoader<String, XsdResource>() {
+                  public XsdResource load(String key) throws IOException {
+                    try (InputStream in = getResourceAsStream(key)) {
+                      return XsdResource.of(readAllBytes(in));
                     } catch (java.lang.Exception exc1) {
                       // gulp
-                    } finally {
-                      if (in != null) {
-                        in.close();
-                      }
+                      return XsdResource.of(new byte[0]);
                     }
-                    return s.trim();
                   }
                 });
 
-    urlResourceCache =
+    inlineResourceCache =
         Caffeine.newBuilder()
-            // .concurrencyLevel(4)
-            .maximumSize(1048000)
+            .maximumWeight(CacheBudget.RESOURCE_BYTES)
+            .weigher((String key, XsdResource value) -> CacheBudget.weigh(key, value.length()))
             .expireAfterAccess(10, TimeUnit.MINUTES)
-            .build(
-                new CacheLoader<String, String>() {
-                  public String load(String key) throws IOException {
-                    InputStream in = null;
-                    String s = "";
-                    try {
-                      URL url = new URL(key);
-                      in = url.openStream();
-                      s = new String(readAllBytes(in), StandardCharsets.UTF_8);
-                    } catch (java.lang.Exception exc1) {
-                      // gulp
-                    } finally {
-                      if (in != null) {
-                        in.close();
-                      }
-                    }
-                    return s.trim();
-                  }
-                });
+            .recordStats()
+            .build();
+
+    catalog =
+        SchemaCatalog.load(
+            CATALOG_RESOURCE,
+            fileResourceCache::get,
+            ref -> urlResourceCache.get(ref, UrlResourceCache.Settings.defaults()));
   }
 
-  public XsdValidatorCallout(Map properties) {
-    super(properties);
+  // The SharedGrammarPool links against Xerces-J, which is deployed only for shared-grammar-pool.
+  // Without it the pool cannot have been used, and touching the class would throw
+  // NoClassDefFoundError, so it is neither reported nor invalidated.
+  private static boolean isXercesPresent() {
+    try {
+      Class.forName(
+          "org.apache.xerces.xni.XNIException", false, XsdValidatorCallout.class.getClassLoader());
+      return true;
+    } catch (ClassNotFoundException | LinkageError exc) {
+      return false;
+    }
   }
 
   private static byte[] readAllBytes(InputStream in) throws IOException {
@@ -162,6 +152,226 @@ public class XsdValidatorCallout extends CalloutBase implements Execution {
     return buffer.toByteArray();
   }
 
+  private static final ExecutorService precompileExecutor =
+      Executors.newFixedThreadPool(
+          2,
+          r -> {
+            Thread t = new Thread(r, "xsd-precompile");
+            t.setDaemon(true);
+            return t;
+          });
+
+  // set when the schema has been compiled ahead of the first request, with the generation of the
+  // schema cache when it was looked up
+  private volatile Pair<CompiledSchema, Long> precompiled;
+
+  // Settings that cannot refer to variables, read once.
+  private final boolean wantFaultOnInvalid;
+  private final boolean useDomSource;
+  private final boolean useSharedGrammarPool;
+  private final boolean deferNodeExpansion;
+  private final boolean wantTimings;
+  private final String sourceProperty;
+  // the element to validate, when that is not the document element
+  private final SubtreePath subtree;
+  // whether the source holds several documents, and what separates them in a string
+  private final boolean batch;
+  private final String batchDelimiter;
+  private final ValidationEngine engine;
+  // outcomes of recent documents, or null unless result-cache is true
+  private final ResultCache resultCache;
+  // "stats" or "invalidate" for a policy that manages the caches rather than validating; or null
+  private final String cacheAction;
+
+  // the main XSD, from the schema property, or null
+  private final PropertyTemplate schemaTemplate;
+  // the XSD for each schemaLocation, from the schema:* properties
+  private final Map<String, PropertyTemplate> schemaDependencies;
+  // the XSD for each root element, from the root:* properties; empty if there are none
+  private final Map<QName, PropertyTemplate> rootSchemas;
+  // set when the root schemas have been compiled ahead of the first request, as above
+  private volatile Map<QName, Pair<CompiledSchema, Long>> precompiledByRoot;
+
+  // the set from the catalog named in the schema-set property, or null
+  private final SchemaCatalog.SchemaSet schemaSet;
+
+  public XsdValidatorCallout(Map properties) {
+    super(properties);
+    wantFaultOnInvalid = getBooleanProperty("throw-fault-on-invalid", false);
+    useDomSource = getBooleanProperty("use-dom-source", false);
+    useSharedGrammarPool = getBooleanProperty("shared-grammar-pool", false);
+    deferNodeExpansion = getBooleanProperty("defer-node-expansion", true);
+    wantTimings = getBooleanProperty("timing", true);
+    sourceProperty = getSourceProperty();
+    subtree = getSubtreePath();
+    schemaTemplate = getPropertyTemplate("schema");
+    schemaDependencies = getSchemaDependencies();
+    rootSchemas = getRootSchemas();
+    schemaSet = getSchemaSet();
+    batch = isBatch();
+    batchDelimiter = getBatchDelimiter();
+    engine = new ValidationEngine(useDomSource, deferNodeExpansion, subtree);
+    resultCache = getResultCache();
+    cacheAction = getCacheAction();
+    maybePrecompile();
+  }
+
+  // The schema-set property names a set in the catalog, optionally with the version that the
+  // proxy expects, as name@version.
+  private SchemaCatalog.SchemaSet getSchemaSet() {
+    String spec = (String) this.properties.get("schema-set");
+    if (spec == null || spec.trim().equals("")) {
+      return null;
+    }
+    if (schemaTemplate != null || !rootSchemas.isEmpty()) {
+      throw new IllegalStateException(
+          "configuration error: specify only one of schema, schema-set, or root:* properties");
+    }
+    // the catalog compiles each set once, with the default pool settings and without the shared
+    // grammar pool, for all the policies that use it
+    for (String key : this.properties.keySet()) {
+      if (key.startsWith("validator-pool-") || key.equals("shared-grammar-pool")) {
+        throw new IllegalStateException(
+            "configuration error: " + key + " does not apply to schema-set");
+      }
+    }
+    String[] parts = spec.trim().split("@", 2);
+    SchemaCatalog.SchemaSet set;
+    try {
+      set = catalog.getSet(parts[0]);
+    } catch (IllegalStateException exc) {
+      throw new IllegalStateException("configuration error: " + exc.getMessage(), exc);
+    }
+    if (set == null) {
+      throw new IllegalStateException("configuration error: unknown schema set " + parts[0]);
+    }
+    if (parts.length > 1 && !parts[1].equals(set.version)) {
+      throw new IllegalStateException(
+          String.format(
+              "configuration error: schema set %s is version %s, not %s",
+              set.name, set.version, parts[1]));
+    }
+    return set;
+  }
+
+  private Map<String, PropertyTemplate> getSchemaDependencies() {
+    Map<String, PropertyTemplate> dependencies = new HashMap<String, PropertyTemplate>();
+    for (Map.Entry<String, Object> entry : this.properties.entrySet()) {
+      if (entry.getKey().startsWith("schema:")) {
+        dependencies.put(
+            entry.getKey().split(":", 2)[1],
+            PropertyTemplate.compile(((String) entry.getValue()).trim()));
+      }
+    }
+    return dependencies;
+  }
+
+  private Map<QName, PropertyTemplate> getRootSchemas() {
+    Map<QName, PropertyTemplate> roots = new HashMap<QName, PropertyTemplate>();
+    for (Map.Entry<String, Object> entry : this.properties.entrySet()) {
+      if (entry.getKey().startsWith("root:")) {
+        String name = entry.getKey().substring(5).trim();
+        try {
+          roots.put(
+              QName.valueOf(name), PropertyTemplate.compile(((String) entry.getValue()).trim()));
+        } catch (IllegalArgumentException exc) {
+          throw new IllegalStateException("configuration error: invalid root element " + name);
+        }
+      }
+    }
+    if (!roots.isEmpty() && this.properties.get("schema") != null) {
+      throw new IllegalStateException(
+          "configuration error: specify either schema or root:* properties, not both");
+    }
+    return roots;
+  }
+
+  private String getEagerCompileMode() {
+    String mode = (String) this.properties.get("eager-compile");
+    mode = (mode == null) ? "true" : mode.trim().toLowerCase();
+    if (!mode.equals("true") && !mode.equals("false") && !mode.equals("background")) {
+      throw new IllegalStateException("configuration error: invalid eager-compile setting");
+    }
+    return mode;
+  }
+
+  // The schema can be compiled before the first request only if the XSDs, and the settings that
+  // apply at compile time, do not refer to context variables. XSDs named by an http(s) URL in the
+  // properties are excluded too, because their content may change. An XSD that imports another
+  // via an http(s) schemaLocation is still compiled; that fetch is bounded by the fetch deadline.
+  private boolean isStaticSchemaConfiguration() {
+    if (schemaTemplate == null && rootSchemas.isEmpty()) {
+      return false;
+    }
+    return this.properties.keySet().stream()
+        .filter(
+            key ->
+                key.equals("schema")
+                    || key.startsWith("schema:")
+                    || key.startsWith("root:")
+                    || key.startsWith("validator-pool-")
+                    || key.startsWith("http-")
+                    || key.equals("schema-compile-wait-ms"))
+        .map(this::getPropertyTemplate)
+        .allMatch(
+            t ->
+                t == null
+                    || (t.isStatic() && !urlReferencePattern.matcher(t.getLiteral()).find()));
+  }
+
+  // Compiling at construction time moves the cost of resource loading, compilation and class
+  // loading out of the first requests, and surfaces a broken schema when the proxy is deployed.
+  private void maybePrecompile() {
+    String mode = getEagerCompileMode();
+    if (schemaSet != null) {
+      // the catalog compiles its sets when it is loaded
+      return;
+    }
+    if (mode.equals("false") || !isStaticSchemaConfiguration()) {
+      return;
+    }
+    if (mode.equals("background")) {
+      precompileExecutor.execute(
+          () -> {
+            try {
+              precompileAll();
+            } catch (Exception exc) {
+              // requests will compile the schema, and report the error
+            }
+          });
+      return;
+    }
+    try {
+      precompileAll();
+    } catch (Exception exc) {
+      throw new IllegalStateException(
+          "configuration error: cannot compile the schema: " + exc.getMessage(), exc);
+    }
+  }
+
+  private void precompileAll() throws Exception {
+    if (rootSchemas.isEmpty()) {
+      precompiled = compileAndWarmUp(schemaTemplate);
+      return;
+    }
+    Map<QName, Pair<CompiledSchema, Long>> compiled =
+        new ConcurrentHashMap<QName, Pair<CompiledSchema, Long>>();
+    for (Map.Entry<QName, PropertyTemplate> entry : rootSchemas.entrySet()) {
+      compiled.put(entry.getKey(), compileAndWarmUp(entry.getValue()));
+    }
+    precompiledByRoot = compiled;
+  }
+
+  // Returns the schema, with the generation of the schema cache before it was looked up, so that
+  // a request can tell whether an invalidation may have removed it from the cache since.
+  private Pair<CompiledSchema, Long> compileAndWarmUp(PropertyTemplate mainXsd) throws Exception {
+    long generation = SchemaCache.generation();
+    // there are no variable references, so no message context is needed
+    CompiledSchema compiled = lookupSchema(null, mainXsd, Timings.DISABLED).compiled;
+    compiled.warmUp();
+    return Pair.of(compiled, generation);
+  }
+
   public String getVarnamePrefix() {
     return varPrefix;
   }
@@ -171,126 +381,209 @@ public class XsdValidatorCallout extends CalloutBase implements Execution {
     return (sourceProp == null || sourceProp.equals("")) ? "message" : sourceProp;
   }
 
-  private boolean wantFaultOnInvalid() {
-    String wantFault = (String) this.properties.get("throw-fault-on-invalid");
-    return (wantFault != null) && Boolean.parseBoolean(wantFault);
+  // A batch is validated against one schema, so it cannot dispatch on the root element.
+  private boolean isBatch() {
+    boolean batch = getBooleanProperty("batch", false);
+    if (batch && !rootSchemas.isEmpty()) {
+      throw new IllegalStateException(
+          "configuration error: batch cannot be combined with root:* properties");
+    }
+    return batch;
+  }
+
+  private String getBatchDelimiter() {
+    String delimiter = (String) this.properties.get("batch-delimiter");
+    return (delimiter == null || delimiter.trim().equals("")) ? null : delimiter.trim();
+  }
+
+  // The result cache is keyed by the schema, so it cannot be used when the schema depends on the
+  // root element, which is known only after parsing.
+  private ResultCache getResultCache() {
+    if (!getBooleanProperty("result-cache", false)) {
+      return null;
+    }
+    if (!rootSchemas.isEmpty()) {
+      throw new IllegalStateException(
+          "configuration error: result-cache cannot be combined with root:* properties");
+    }
+    return new ResultCache(
+        getStaticSetting("result-cache-size", ResultCache.DEFAULT_SIZE, 1),
+        getStaticSetting("result-cache-ttl-seconds", ResultCache.DEFAULT_TTL_SECONDS, 1),
+        (int)
+            Math.min(
+                getStaticSetting(
+                    "result-cache-max-payload-bytes", ResultCache.DEFAULT_MAX_PAYLOAD_BYTES, 0),
+                Integer.MAX_VALUE - 8));
+  }
+
+  private String getCacheAction() {
+    String action = (String) this.properties.get("cache-action");
+    if (action == null || action.trim().equals("")) {
+      return null;
+    }
+    action = action.trim().toLowerCase();
+    if (!action.equals("stats") && !action.equals("invalidate")) {
+      throw new IllegalStateException("configuration error: invalid cache-action " + action);
+    }
+    return action;
   }
 
-  private boolean useDomSource() {
-    String wantDom = (String) this.properties.get("use-dom-source");
-    boolean dom = (wantDom != null) && Boolean.parseBoolean(wantDom);
-    return dom;
+  private long getStaticSetting(String name, long defaultValue, long min) {
+    String value = (String) this.properties.get(name);
+    if (value == null || value.trim().equals("")) {
+      return defaultValue;
+    }
+    try {
+      long n = Long.parseLong(value.trim());
+      if (n < min) {
+        throw new NumberFormatException();
+      }
+      return n;
+    } catch (NumberFormatException exc) {
+      throw new IllegalStateException("configuration error: invalid " + name + " setting");
+    }
   }
 
-  private static Document getSourceDocument(InputStream in)
-      throws ParserConfigurationException, SAXException, IOException {
-    DocumentBuilderFactory nonThreadSafeFactory = DocumentBuilderFactory.newInstance();
-    nonThreadSafeFactory.setFeature(EXTERNAL_PARAMETER_ENTITIES, false);
-    nonThreadSafeFactory.setFeature(EXTERNAL_GENERAL_ENTITIES, false);
-    nonThreadSafeFactory.setFeature(LOAD_EXTERNAL_DTD, false);
-    nonThreadSafeFactory.setNamespaceAware(true);
-    DocumentBuilder builder = nonThreadSafeFactory.newDocumentBuilder();
-    InputSource inputSource = new InputSource(in);
-    return builder.parse(inputSource);
+  private SubtreePath getSubtreePath() {
+    String spec = (String) this.properties.get("subtree");
+    if (spec == null || spec.trim().equals("")) {
+      return null;
+    }
+    try {
+      return SubtreePath.parse(spec.trim());
+    } catch (IllegalArgumentException exc) {
+      throw new IllegalStateException("configuration error: " + exc.getMessage());
+    }
   }
 
-  private InputStream getInputStream(MessageContext msgCtxt) {
-    String sourceProp = getSourceProperty();
+  private XmlInput getInput(MessageContext msgCtxt) {
+    String sourceProp = sourceProperty;
     Object in = msgCtxt.getVariable(sourceProp);
     if (in == null) {
       throw new IllegalStateException(String.format("source '%s' is empty", sourceProp));
     }
     if (in instanceof com.apigee.flow.message.Message) {
       Message msg = (Message) in;
-      return msg.getContentAsStream();
+      return XmlInput.of(msg.getContentAsStream());
     }
     // Assume the source resolves to an xml string.
     // The cast may throw if the callout is misconfigured.
-    String s = (String) in;
-    s = s.trim();
-    if (!s.startsWith("<")) {
+    XmlInput input = XmlInput.of((CharSequence) in);
+    if (input == null) {
       throw new IllegalStateException(
           String.format("source '%s' does not appear to be XML", sourceProp));
     }
-    return new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8));
+    return input;
   }
 
-  private Source getSource(MessageContext msgCtxt)
-      throws IOException, ParserConfigurationException, SAXException {
-    InputStream in = getInputStream(msgCtxt);
-    return (useDomSource()) ? new DOMSource(getSourceDocument(in)) : new StreamSource(in);
+  // The source of a batch: a collection or a string as it is, or the body of a message as bytes.
+  private Object getBatchSource(MessageContext msgCtxt) throws IOException {
+    Object in = msgCtxt.getVariable(sourceProperty);
+    if (in == null) {
+      throw new IllegalStateException(String.format("source '%s' is empty", sourceProperty));
+    }
+    if (in instanceof Message) {
+      try (InputStream content = ((Message) in).getContentAsStream()) {
+        return readAllBytes(content);
+      }
+    }
+    return in;
   }
 
-  private String resolveOneXsd(String xsd, MessageContext msgCtxt)
-      throws java.util.concurrent.ExecutionException {
-    if (xsd == null || xsd.equals("")) {
+  // Resolves the variable references in an XSD property. The result is the XSD itself, a
+  // file:// reference, or an http(s) URL.
+  private static String resolveXsdReference(PropertyTemplate template, MessageContext msgCtxt) {
+    String xsd = (template == null) ? null : template.resolve(msgCtxt);
+    if (xsd == null) {
       throw new IllegalStateException("configuration error: xsd resolves to null or empty");
     }
-    xsd = resolvePropertyValue(xsd, msgCtxt);
-    if (xsd == null || xsd.equals("")) {
-      throw new IllegalStateException("configuration error: xsd resolves to null or empty");
-    }
-    xsd = xsd.trim();
-    return (xsd.startsWith("<")) ? xsd : maybeResolveUrlReference(xsd);
+    return xsd.trim();
+  }
+
+  private static boolean isUrlReference(String ref) {
+    return !ref.startsWith("<") && urlReferencePattern.matcher(ref).find();
   }
 
-  protected void verifyRequiredRoot(String expectedName, String expectedNsuri, Document doc) {
-    Element elt = (Element) doc.getDocumentElement();
-    boolean invalid = false;
-    if (!expectedName.equals(elt.getLocalName())) {
-      invalid = true;
-    } else if ((expectedNsuri == null || expectedNsuri.equals(""))
-        && !(elt.getNamespaceURI() == null || elt.getNamespaceURI().equals(""))) {
-      invalid = true;
-    } else if (expectedNsuri != null
-        && (elt.getNamespaceURI() == null || !elt.getNamespaceURI().equals(expectedNsuri))) {
-      invalid = true;
+  private static XsdResource resolveXsd(String ref, UrlResourceCache.Batch fetched) {
+    if (isUrlReference(ref)) {
+      XsdResource resource = fetched.resources.get(ref);
+      if (resource == null) {
+        throw new IllegalStateException(fetched.failures.get(ref));
+      }
+      return resource;
     }
-    if (invalid) {
-      throw new IllegalStateException("unacceptable root element");
+    if (ref.startsWith("file://")) {
+      return fileResourceCache.get(ref.substring(7, ref.length()));
     }
+    return inlineResourceCache.get(ref, XsdResource::of);
   }
 
-  private Pair<StreamSource, Map<String, String>> getSchema(MessageContext msgCtxt)
-      throws Exception {
+  private Pair<XsdResource, Map<String, XsdResource>> getSchema(
+      MessageContext msgCtxt, PropertyTemplate mainXsd) throws Exception {
     // the schema order is unimportant.
-    String mainXsd = (String) this.properties.get("schema");
-    if (mainXsd == null || mainXsd.equals("")) {
+    if (mainXsd == null) {
       throw new IllegalStateException("configuration error: no xsd property");
     }
 
-    Map<String, List<Pair<String, ? extends Object>>> splits =
-        this.properties.keySet().stream()
-            .filter(key -> key.startsWith("schema:"))
-            .map(
-                key -> {
-                  String[] parts = key.split(":", 2);
-                  String xsd = (String) this.properties.get(key);
-                  try {
-                    return Pair.of(parts[1], resolveOneXsd(xsd, msgCtxt));
-                  } catch (Exception exc) {
-                    // exc.printStackTrace(System.out);
-                    return Pair.of(parts[1], exc);
-                  }
-                })
-            .collect(
-                Collectors.groupingBy(
-                    x -> (x.right instanceof Exception) ? "exceptions" : "sources"));
+    // Collect every failure, keyed by the schemaLocation, or "schema" for the main XSD, so that
+    // all of them can be reported together.
+    Map<String, Exception> errors = new TreeMap<String, Exception>();
+    Map<String, String> refs = new HashMap<String, String>();
+    for (Map.Entry<String, PropertyTemplate> entry : schemaDependencies.entrySet()) {
+      try {
+        refs.put(entry.getKey(), resolveXsdReference(entry.getValue(), msgCtxt));
+      } catch (Exception exc) {
+        errors.put(entry.getKey(), exc);
+      }
+    }
+    String mainRef = null;
+    try {
+      mainRef = resolveXsdReference(mainXsd, msgCtxt);
+    } catch (Exception exc) {
+      errors.put("schema", exc);
+    }
 
-    List<Pair<String, ? extends Object>> exceptions = splits.get("exceptions");
+    // fetch the http(s) XSDs that are not cached concurrently, with an overall deadline
+    List<String> urls =
+        Stream.concat(Stream.of(mainRef), refs.values().stream())
+            .filter(ref -> ref != null && isUrlReference(ref))
+            .distinct()
+            .collect(Collectors.toList());
+    UrlResourceCache.Batch fetched =
+        (urls.isEmpty())
+            ? new UrlResourceCache.Batch()
+            : urlResourceCache.getAll(urls, getHttpSettings(msgCtxt));
 
-    if (exceptions != null && exceptions.size() > 0) {
-      throw (Exception) exceptions.get(0).right;
+    Map<String, XsdResource> dependencies = new HashMap<String, XsdResource>();
+    for (Map.Entry<String, String> entry : refs.entrySet()) {
+      try {
+        dependencies.put(entry.getKey(), resolveXsd(entry.getValue(), fetched));
+      } catch (Exception exc) {
+        errors.put(entry.getKey(), exc);
+      }
+    }
+    XsdResource mainXsdContent = null;
+    if (mainRef != null) {
+      try {
+        mainXsdContent = resolveXsd(mainRef, fetched);
+      } catch (Exception exc) {
+        errors.put("schema", exc);
+      }
     }
 
-    StreamSource streamSource = new StreamSource(new StringReader(resolveOneXsd(mainXsd, msgCtxt)));
-    if (splits.get("sources") != null) {
-      return Pair.of(
-          streamSource,
-          splits.get("sources").stream()
-              .collect(Collectors.toMap(x -> x.left, x -> (String) x.right)));
+    if (errors.size() == 1) {
+      throw errors.values().iterator().next();
     }
-    return Pair.of(streamSource, null);
+    if (errors.size() > 1) {
+      throw new IllegalStateException(
+          String.format(
+              "cannot resolve %d schemas: %s",
+              errors.size(),
+              errors.entrySet().stream()
+                  .map(e -> e.getKey() + ": " + e.getValue().getMessage())
+                  .collect(Collectors.joining("; "))));
+    }
+    return Pair.of(mainXsdContent, (dependencies.isEmpty()) ? null : dependencies);
   }
 
   private static InputStream getResourceAsStream(String resourceName) throws IOException {
@@ -304,15 +597,146 @@ public class XsdValidatorCallout extends CalloutBase implements Execution {
     return in;
   }
 
-  private String maybeResolveUrlReference(String ref) throws ExecutionException {
-    if (ref.startsWith("file://")) {
-      return fileResourceCache.get(ref.substring(7, ref.length()));
+  private UrlResourceCache.Settings getHttpSettings(MessageContext msgCtxt) throws Exception {
+    String connectTimeout = getSimpleOptionalProperty("http-connect-timeout-ms", msgCtxt);
+    String readTimeout = getSimpleOptionalProperty("http-read-timeout-ms", msgCtxt);
+    String deadline = getSimpleOptionalProperty("http-fetch-deadline-ms", msgCtxt);
+    if (connectTimeout == null && readTimeout == null && deadline == null) {
+      return UrlResourceCache.Settings.defaults();
+    }
+    try {
+      UrlResourceCache.Settings settings =
+          new UrlResourceCache.Settings(
+              (connectTimeout == null)
+                  ? UrlResourceCache.DEFAULT_CONNECT_TIMEOUT_MILLIS
+                  : Integer.parseInt(connectTimeout),
+              (readTimeout == null)
+                  ? UrlResourceCache.DEFAULT_READ_TIMEOUT_MILLIS
+                  : Integer.parseInt(readTimeout),
+              (deadline == null)
+                  ? UrlResourceCache.DEFAULT_DEADLINE_MILLIS
+                  : Long.parseLong(deadline));
+      if (settings.connectTimeoutMillis < 1
+          || settings.readTimeoutMillis < 1
+          || settings.deadlineMillis < 1) {
+        throw new IllegalArgumentException();
+      }
+      return settings;
+    } catch (IllegalArgumentException exc) {
+      throw new IllegalStateException("configuration error: invalid http timeout setting");
+    }
+  }
+
+  private long getLimit(String name, MessageContext msgCtxt) throws Exception {
+    String value = getSimpleOptionalProperty(name, msgCtxt);
+    if (value == null) {
+      return 0;
+    }
+    try {
+      long n = Long.parseLong(value);
+      if (n < 0) {
+        throw new NumberFormatException();
+      }
+      return n;
+    } catch (NumberFormatException exc) {
+      throw new IllegalStateException("configuration error: invalid " + name + " setting");
+    }
+  }
+
+  private PayloadLimits getPayloadLimits(MessageContext msgCtxt) throws Exception {
+    long maxBytes = getLimit(PayloadLimits.MAX_BYTES, msgCtxt);
+    long maxDepth = getLimit(PayloadLimits.MAX_DEPTH, msgCtxt);
+    long maxElements = getLimit(PayloadLimits.MAX_ELEMENTS, msgCtxt);
+    long maxAttributes = getLimit(PayloadLimits.MAX_ATTRIBUTES, msgCtxt);
+    if (maxBytes == 0 && maxDepth == 0 && maxElements == 0 && maxAttributes == 0) {
+      return null;
+    }
+    return new PayloadLimits(
+        maxBytes,
+        (int) Math.min(maxDepth, Integer.MAX_VALUE),
+        maxElements,
+        (int) Math.min(maxAttributes, Integer.MAX_VALUE));
+  }
+
+  private int getMaxErrors(MessageContext msgCtxt) throws Exception {
+    String maxErrors = getSimpleOptionalProperty("max-errors", msgCtxt);
+    if (maxErrors == null) {
+      return 0;
+    }
+    try {
+      int n = Integer.parseInt(maxErrors);
+      if (n < 0) {
+        throw new NumberFormatException();
+      }
+      return n;
+    } catch (NumberFormatException exc) {
+      throw new IllegalStateException("configuration error: invalid max-errors setting");
+    }
+  }
+
+  private ValidatorPool.Config getValidatorPoolConfig(MessageContext msgCtxt) throws Exception {
+    String size = getSimpleOptionalProperty("validator-pool-size", msgCtxt);
+    String action = getSimpleOptionalProperty("validator-pool-exhausted", msgCtxt);
+    String wait = getSimpleOptionalProperty("validator-pool-wait-ms", msgCtxt);
+    if (size == null && action == null && wait == null) {
+      return ValidatorPool.Config.defaults();
+    }
+    try {
+      return new ValidatorPool.Config(
+          (size == null) ? ValidatorPool.DEFAULT_SIZE : Integer.parseInt(size),
+          (action == null)
+              ? ValidatorPool.ExhaustedAction.CREATE
+              : ValidatorPool.ExhaustedAction.valueOf(action.toUpperCase()),
+          (wait == null) ? ValidatorPool.DEFAULT_WAIT_MILLIS : Long.parseLong(wait));
+    } catch (IllegalArgumentException exc) {
+      throw new IllegalStateException("configuration error: invalid validator pool setting");
+    }
+  }
+
+  // Compiles only if this combination of XSDs has not been seen recently. The context is null when
+  // precompiling, so this must not set variables; the caller reports the outcome of the lookup.
+  private SchemaCache.Lookup lookupSchema(
+      MessageContext msgCtxt, PropertyTemplate mainXsd, Timings timings) throws Exception {
+    Pair<XsdResource, Map<String, XsdResource>> schemaConfig = getSchema(msgCtxt, mainXsd);
+    UrlResourceCache.Settings httpSettings = getHttpSettings(msgCtxt);
+    ValidatorPool.Config poolConfig = getValidatorPoolConfig(msgCtxt);
+    long compileWaitMillis = getCompileWaitMillis(msgCtxt);
+    timings.lap(Timings.Phase.FETCH);
+    SchemaCache.Lookup lookup =
+        SchemaCache.get(
+            schemaConfig.left,
+            schemaConfig.right,
+            ref -> fetchImport(ref, httpSettings),
+            poolConfig,
+            useSharedGrammarPool,
+            compileWaitMillis);
+    timings.lap(Timings.Phase.COMPILE);
+    return lookup;
+  }
+
+  // Retrieves an XSD for an http(s) schemaLocation during a compile. This goes through getAll so
+  // that the fetch deadline applies, and a slow server cannot hold up the compile, or the
+  // deployment when precompiling, for longer than that.
+  private static XsdResource fetchImport(String ref, UrlResourceCache.Settings httpSettings) {
+    return resolveXsd(ref, urlResourceCache.getAll(Collections.singletonList(ref), httpSettings));
+  }
+
+  // how long to wait for a compile of the same schema that another request started; 0 is no limit
+  private long getCompileWaitMillis(MessageContext msgCtxt) throws Exception {
+    String wait = getSimpleOptionalProperty("schema-compile-wait-ms", msgCtxt);
+    if (wait == null) {
+      return 0;
     }
-    Matcher m = urlReferencePattern.matcher(ref);
-    if (m.find()) {
-      return urlResourceCache.get(ref);
+    try {
+      long millis = Long.parseLong(wait);
+      if (millis < 0) {
+        throw new IllegalArgumentException();
+      }
+      return millis;
+    } catch (IllegalArgumentException exc) {
+      throw new IllegalStateException(
+          "configuration error: invalid schema-compile-wait-ms setting");
     }
-    return ref;
   }
 
   protected Pair<String, String> getRequiredRoot(MessageContext msgCtxt) throws Exception {
@@ -324,50 +748,319 @@ public class XsdValidatorCallout extends CalloutBase implements Execution {
     return Pair.of(requiredRoot, requiredRootNs);
   }
 
+  private void setTimingVariables(Timings timings, MessageContext msgCtxt) {
+    for (Timings.Phase phase : Timings.Phase.values()) {
+      if (timings.wasRecorded(phase)) {
+        msgCtxt.setVariable(varName("timing_" + phase.label + "_ns"), timings.getNanos(phase));
+      }
+    }
+    msgCtxt.setVariable(varName("timing_total_ns"), timings.getTotalNanos());
+  }
+
+  // Returns the compiled schema for the request: from the catalog, precompiled, or from the cache.
+  // The root is the root element of the document, which selects the schema when there are root:*
+  // properties.
+  private CompiledSchema selectSchema(MessageContext msgCtxt, QName root, Timings timings)
+      throws Exception {
+    PropertyTemplate mainXsd = schemaTemplate;
+    Pair<CompiledSchema, Long> held = precompiled;
+    if (schemaSet != null) {
+      boolean ready = catalog.isReady(schemaSet.name);
+      CompiledSchema compiled = catalog.get(schemaSet.name);
+      timings.lap(Timings.Phase.COMPILE);
+      msgCtxt.setVariable(varName("schema_cache_hit"), ready);
+      if (schemaSet.version != null) {
+        msgCtxt.setVariable(varName("schema_set_version"), schemaSet.version);
+      }
+      return compiled;
+    }
+    if (!rootSchemas.isEmpty()) {
+      mainXsd = rootSchemas.get(root);
+      if (mainXsd == null) {
+        throw new IllegalStateException("no schema for root element " + root);
+      }
+      msgCtxt.setVariable(varName("dispatched_root"), root.toString());
+      Map<QName, Pair<CompiledSchema, Long>> byRoot = precompiledByRoot;
+      held = (byRoot == null) ? null : byRoot.get(root);
+    }
+    // a precompiled schema stands until an invalidation, which may have removed it from the cache
+    if (held != null && held.right == SchemaCache.generation()) {
+      msgCtxt.setVariable(varName("schema_cache_hit"), true);
+      return held.left;
+    }
+    long generation = SchemaCache.generation();
+    SchemaCache.Lookup lookup = lookupSchema(msgCtxt, mainXsd, timings);
+    msgCtxt.setVariable(varName("schema_cache_hit"), lookup.hit);
+    if (lookup.waited) {
+      msgCtxt.setVariable(varName("schema_compile_waited"), true);
+    }
+    if (held != null) {
+      // hold on to the schema as it is now, so later requests need not look it up
+      Pair<CompiledSchema, Long> current = Pair.of(lookup.compiled, generation);
+      if (rootSchemas.isEmpty()) {
+        precompiled = current;
+      } else {
+        precompiledByRoot.put(root, current);
+      }
+    }
+    return lookup.compiled;
+  }
+
+  // Validates the documents of a batch in parallel, and sets the batch variables. Returns true if
+  // all the documents are valid.
+  private boolean validateBatch(
+      MessageContext msgCtxt,
+      List<XmlInput> inputs,
+      CompiledSchema compiled,
+      Pair<String, String> requiredRoot,
+      PayloadLimits limits,
+      int maxErrors)
+      throws Exception {
+    List<Callable<ValidationResult>> tasks =
+        new ArrayList<Callable<ValidationResult>>(inputs.size());
+    for (XmlInput in : inputs) {
+      tasks.add(() -> engine.validate(compiled, in, requiredRoot, limits, maxErrors));
+    }
+    List<ValidationResult> items = Batch.run(tasks);
+    int invalid = 0;
+    for (ValidationResult item : items) {
+      if (!item.valid) {
+        invalid++;
+      }
+    }
+    msgCtxt.setVariable(varName("batch_count"), items.size());
+    msgCtxt.setVariable(varName("batch_invalid_count"), invalid);
+    msgCtxt.setVariable(varName("batch_results"), Batch.toJson(items));
+    return invalid == 0;
+  }
+
+  // the request settings that can change the outcome for a document, for the result cache key
+  private static String resultSettings(
+      Pair<String, String> requiredRoot, PayloadLimits limits, int maxErrors) {
+    return String.format(
+        "%d|%s|%s|%s",
+        maxErrors,
+        (requiredRoot == null) ? null : requiredRoot.left,
+        (requiredRoot == null) ? null : requiredRoot.right,
+        limits);
+  }
+
+  // the variables that describe the outcome of validating a document, unprefixed, in the order
+  // they are set, for replaying from the result cache
+  private Map<String, Object> resultVariables(
+      ValidationResult result, CustomValidationErrorHandler errorHandler, MessageContext msgCtxt) {
+    Map<String, Object> variables = new LinkedHashMap<String, Object>();
+    for (int i = 1; i <= errorHandler.getErrorCount(); i++) {
+      variables.put("error_" + i, msgCtxt.getVariable(varName("error_" + i)));
+    }
+    for (int i = 1; i <= errorHandler.getWarningCount(); i++) {
+      variables.put("warning_" + i, msgCtxt.getVariable(varName("warning_" + i)));
+    }
+    if (result.subtreeRoot != null) {
+      variables.put("subtree_root", result.subtreeRoot.toString());
+    }
+    variables.put("validation_stopped_early", result.stoppedEarly);
+    variables.put("valid", result.valid);
+    String exceptions = errorHandler.getConsolidatedExceptionMessage();
+    if (exceptions != null) {
+      variables.put("validation_exceptions", exceptions);
+    }
+    String paths = errorHandler.getPaths();
+    if (paths != null) {
+      variables.put("failing_paths", paths);
+    }
+    return variables;
+  }
+
+  /**
+   * Returns the statistics of the JVM-wide caches, by cache: "file" for XSDs from the jar, "inline"
+   * for XSDs given inline in the configuration, "url" for XSDs retrieved via http(s), "schema" for
+   * compiled schemas, and "grammar" for the shared grammar pool.
+   */
+  public static Map<String, CacheDiagnostics.Stats> cacheStats() {
+    Map<String, CacheDiagnostics.Stats> stats = new LinkedHashMap<String, CacheDiagnostics.Stats>();
+    stats.put("file", CacheDiagnostics.of(fileResourceCache));
+    stats.put("inline", CacheDiagnostics.of(inlineResourceCache));
+    stats.put("url", urlResourceCache.diagnostics());
+    stats.put("schema", SchemaCache.diagnostics());
+    stats.put(
+        "grammar",
+        (grammarPoolAvailable) ? SharedGrammarPool.diagnostics() : CacheDiagnostics.empty());
+    return stats;
+  }
+
+  private void setCacheStatsVariables(MessageContext msgCtxt) {
+    for (Map.Entry<String, CacheDiagnostics.Stats> cache : cacheStats().entrySet()) {
+      for (Map.Entry<String, Long> stat : cache.getValue().toMap().entrySet()) {
+        msgCtxt.setVariable(
+            varName("cache_" + cache.getKey() + "_" + stat.getKey()), stat.getValue());
+      }
+    }
+  }
+
+  // Removes an XSD from the cache that holds it, and then the compiled schemas and shared grammars
+  // built from it, including those of schema sets. Returns the number of compiled schemas removed
+  // from the schema cache, or -1 if the XSD was not cached.
+  private static int invalidateXsd(String ref) {
+    XsdResource removed;
+    if (isUrlReference(ref)) {
+      removed = urlResourceCache.invalidate(ref);
+    } else if (ref.startsWith("file://")) {
+      removed = fileResourceCache.asMap().remove(ref.substring(7));
+    } else {
+      removed = inlineResourceCache.asMap().remove(ref);
+    }
+    if (removed == null) {
+      return -1;
+    }
+    return invalidateDependents(removed.getDigest());
+  }
+
+  // Removes the compiled schemas and shared grammars built from the XSD with the given digest,
+  // including those of schema sets. Returns the number removed from the schema cache.
+  private static int invalidateDependents(String digest) {
+    if (grammarPoolAvailable) {
+      SharedGrammarPool.invalidateSource(digest);
+    }
+    // the catalog holds on to its compiled schemas, which are also in the schema cache
+    catalog.invalidateDependents(digest);
+    return SchemaCache.invalidateDependents(digest);
+  }
+
+  // With cache-invalidate, removes that XSD, or everything for "*"; otherwise removes the XSDs of
+  // this policy, from its schema, schema:* and root:* properties.
+  private void invalidateCaches(MessageContext msgCtxt) throws Exception {
+    String target = getSimpleOptionalProperty("cache-invalidate", msgCtxt);
+    int resources = 0;
+    int schemas = 0;
+    if ("*".equals(target)) {
+      resources =
+          (int) (fileResourceCache.estimatedSize() + inlineResourceCache.estimatedSize());
+      fileResourceCache.invalidateAll();
+      inlineResourceCache.invalidateAll();
+      urlResourceCache.invalidateAll();
+      if (grammarPoolAvailable) {
+        SharedGrammarPool.invalidateAll();
+      }
+      catalog.invalidateAll();
+      schemas = SchemaCache.invalidateAll();
+    } else {
+      List<String> refs = new ArrayList<String>();
+      if (target != null) {
+        refs.add(target.trim());
+      } else {
+        List<PropertyTemplate> templates = new ArrayList<PropertyTemplate>();
+        if (schemaTemplate != null) {
+          templates.add(schemaTemplate);
+        }
+        templates.addAll(schemaDependencies.values());
+        templates.addAll(rootSchemas.values());
+        for (PropertyTemplate template : templates) {
+          refs.add(resolveXsdReference(template, msgCtxt));
+        }
+      }
+      for (String ref : refs) {
+        int removed = invalidateXsd(ref);
+        if (removed >= 0) {
+          resources++;
+          schemas += removed;
+        }
+      }
+    }
+    msgCtxt.setVariable(varName("cache_invalidated_resources"), resources);
+    msgCtxt.setVariable(varName("cache_invalidated_schemas"), schemas);
+  }
+
   public ExecutionResult execute(MessageContext msgCtxt, ExecutionContext exeCtxt) {
     ExecutionResult calloutResult = ExecutionResult.ABORT;
     CustomValidationErrorHandler errorHandler = null;
     boolean debug = getDebug();
-    Validator validator = null;
+    ValidationEngine.Prepared doc = null;
+    PayloadLimits limits = null;
+    CompiledSchema compiled = null;
+    Timings timings = (wantTimings && cacheAction == null) ? Timings.start() : Timings.DISABLED;
     try {
-      Source source = getSource(msgCtxt);
-      SchemaFactory notThreadSafeFactory =
-          SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-
-      // for resolving imports, and also includes
-      Pair<StreamSource, Map<String, String>> schemaConfig = getSchema(msgCtxt);
-      // if no dependent schema then use the default resolver
-      if (schemaConfig.right != null) {
-        notThreadSafeFactory.setResourceResolver(
-            new CustomResourceResolver(schemaConfig.right, ref -> urlResourceCache.get(ref)));
+      if (cacheAction != null) {
+        if (cacheAction.equals("invalidate")) {
+          invalidateCaches(msgCtxt);
+        }
+        setCacheStatsVariables(msgCtxt);
+        calloutResult = ExecutionResult.SUCCESS;
+        return calloutResult;
       }
-
-      Schema schema = notThreadSafeFactory.newSchema(schemaConfig.left);
-      validator = schema.newValidator();
-      errorHandler = new CustomValidationErrorHandler(msgCtxt, validator, debug);
-      validator.setErrorHandler(errorHandler);
-      validator.validate(source);
-
-      msgCtxt.setVariable(varName("valid"), errorHandler.isValid());
-
+      limits = getPayloadLimits(msgCtxt);
       Pair<String, String> requiredRoot = getRequiredRoot(msgCtxt);
-      if (requiredRoot != null) {
-        verifyRequiredRoot(
-            requiredRoot.left, requiredRoot.right, getSourceDocument(getInputStream(msgCtxt)));
+      int maxErrors = getMaxErrors(msgCtxt);
+      timings.lap(Timings.Phase.PROPERTIES);
+      if (batch) {
+        List<XmlInput> inputs = Batch.split(getBatchSource(msgCtxt), batchDelimiter);
+        compiled = selectSchema(msgCtxt, null, timings);
+        boolean valid = validateBatch(msgCtxt, inputs, compiled, requiredRoot, limits, maxErrors);
+        timings.lap(Timings.Phase.VALIDATE);
+        msgCtxt.setVariable(varName("valid"), valid);
+        calloutResult =
+            (valid || !wantFaultOnInvalid) ? ExecutionResult.SUCCESS : ExecutionResult.ABORT;
+        return calloutResult;
+      }
+      XmlInput input = getInput(msgCtxt);
+      ResultCache.Key resultKey = null;
+      if (resultCache != null) {
+        // select the schema first, since it is part of the key
+        compiled = selectSchema(msgCtxt, null, timings);
+        Pair<ResultCache.Key, XmlInput> keyed =
+            resultCache.keyFor(
+                compiled.fingerprint, resultSettings(requiredRoot, limits, maxErrors), input);
+        resultKey = keyed.left;
+        input = keyed.right;
+        Map<String, Object> remembered = (resultKey == null) ? null : resultCache.get(resultKey);
+        msgCtxt.setVariable(varName("result_cache_hit"), remembered != null);
+        if (remembered != null) {
+          for (Map.Entry<String, Object> entry : remembered.entrySet()) {
+            msgCtxt.setVariable(varName(entry.getKey()), entry.getValue());
+          }
+          boolean valid = (Boolean) remembered.get("valid");
+          calloutResult =
+              (valid || !wantFaultOnInvalid) ? ExecutionResult.SUCCESS : ExecutionResult.ABORT;
+          return calloutResult;
+        }
+      }
+      doc = engine.prepare(input, requiredRoot, !rootSchemas.isEmpty(), limits, timings);
+      if (compiled == null) {
+        compiled = selectSchema(msgCtxt, doc.root, timings);
       }
 
+      errorHandler = new CustomValidationErrorHandler(msgCtxt, debug, maxErrors);
+      ValidationResult result = engine.validate(compiled, doc, errorHandler);
+      timings.lap(Timings.Phase.VALIDATE);
+      if (subtree != null) {
+        msgCtxt.setVariable(varName("subtree_root"), String.valueOf(result.subtreeRoot));
+      }
+      msgCtxt.setVariable(varName("validation_stopped_early"), result.stoppedEarly);
+
+      msgCtxt.setVariable(varName("valid"), result.valid);
+
       calloutResult =
-          (errorHandler.isValid() || !wantFaultOnInvalid())
-              ? ExecutionResult.SUCCESS
-              : ExecutionResult.ABORT;
+          (result.valid || !wantFaultOnInvalid) ? ExecutionResult.SUCCESS : ExecutionResult.ABORT;
+      if (resultKey != null) {
+        resultCache.put(resultKey, resultVariables(result, errorHandler, msgCtxt));
+      }
 
     } catch (Exception ex) {
       msgCtxt.setVariable(varName("valid"), false);
       if (debug) {
         msgCtxt.setVariable(varName("stacktrace"), getStackTraceAsString(ex));
       }
-      setExceptionVariables(ex, msgCtxt);
+      if (limits != null && limits.getExceeded() != null) {
+        // report the limit, however the parser or validator wrapped the exception
+        msgCtxt.setVariable(varName("limit_exceeded"), limits.getExceeded());
+        setExceptionVariables(new IllegalStateException(limits.describeExceeded()), msgCtxt);
+      } else {
+        setExceptionVariables(ex, msgCtxt);
+      }
     } finally {
+      if (doc != null) {
+        doc.release();
+      }
       if (errorHandler != null) {
         String consolidatedExceptionMessage = errorHandler.getConsolidatedExceptionMessage();
         if (consolidatedExceptionMessage != null) {
@@ -378,6 +1071,11 @@ public class XsdValidatorCallout extends CalloutBase implements Execution {
           msgCtxt.setVariable(varName("failing_paths"), paths);
         }
       }
+      if (timings.isEnabled()) {
+        timings.stop();
+        setTimingVariables(timings, msgCtxt);
+        TimingRegistry.record((compiled == null) ? null : compiled.fingerprint, timings);
+      }
     }
     return calloutResult;
   }
@@ -0,0 +1,98 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts;
+
+import com.apigee.flow.message.MessageContext;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import mockit.Mock;
+import mockit.MockUp;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestPropertyTemplate {
+  private static final Pattern variableReferencePattern =
+      Pattern.compile("(.*?)\\{([^\\{\\} ]+?)\\}(.*?)");
+
+  private static MessageContext contextWith(final Map<String, Object> variables) {
+    return new MockUp<MessageContext>() {
+      @Mock()
+      public <T> T getVariable(final String name) {
+        return (T) variables.get(name);
+      }
+    }.getMockInstance();
+  }
+
+  // the regex resolution that templates replace
+  private static String resolveWithRegex(String spec, MessageContext msgCtxt) {
+    Matcher matcher = variableReferencePattern.matcher(spec);
+    StringBuffer sb = new StringBuffer();
+    while (matcher.find()) {
+      matcher.appendReplacement(sb, "");
+      sb.append(matcher.group(1));
+      Object v = msgCtxt.getVariable(matcher.group(2));
+      if (v != null) {
+        sb.append((String) v);
+      }
+      sb.append(matcher.group(3));
+    }
+    matcher.appendTail(sb);
+    return (sb.length() > 0) ? sb.toString() : null;
+  }
+
+  @Test
+  public void resolvesLikeTheRegex() {
+    Map<String, Object> variables = new HashMap<String, Object>();
+    variables.put("a", "alpha");
+    variables.put("b.c", "beta");
+    variables.put("empty", "");
+    MessageContext msgCtxt = contextWith(variables);
+
+    String[] specs = {
+      "",
+      "plain",
+      "{a}",
+      "{b.c}",
+      "{missing}",
+      "{empty}",
+      "x{a}y{b.c}z",
+      "{a}{a}",
+      "{}",
+      "{a b}",
+      "{{a}",
+      "{a}}",
+      "{a",
+      "a}",
+      "https://host/{a}/x.xsd",
+      "{ {a} }",
+    };
+    for (String spec : specs) {
+      Assert.assertEquals(
+          PropertyTemplate.compile(spec).resolve(msgCtxt),
+          resolveWithRegex(spec, msgCtxt),
+          "spec " + spec);
+    }
+  }
+
+  @Test
+  public void staticTemplates() {
+    Assert.assertTrue(PropertyTemplate.compile("xsd/a.xsd").isStatic());
+    Assert.assertTrue(PropertyTemplate.compile("{a b}").isStatic());
+    Assert.assertEquals(PropertyTemplate.compile("{}").getLiteral(), "{}");
+    Assert.assertFalse(PropertyTemplate.compile("xsd/{a}.xsd").isStatic());
+  }
+}
@@ -0,0 +1,49 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestCacheBudget {
+  private static final String PROPERTY = "xsd.cache.test-heap-percent";
+
+  @Test
+  public void budgetIsAShareOfTheHeap() {
+    long maxHeap = Runtime.getRuntime().maxMemory();
+    try {
+      System.setProperty(PROPERTY, "50");
+      Assert.assertEquals(CacheBudget.budget(PROPERTY, 2, 1), maxHeap / 2);
+      // an unusable setting falls back to the default
+      System.setProperty(PROPERTY, "150");
+      Assert.assertEquals(CacheBudget.budget(PROPERTY, 25, 1), maxHeap / 4);
+      System.setProperty(PROPERTY, "lots");
+      Assert.assertEquals(CacheBudget.budget(PROPERTY, 25, 1), maxHeap / 4);
+    } finally {
+      System.clearProperty(PROPERTY);
+    }
+    // the floor applies to a small heap
+    Assert.assertEquals(CacheBudget.budget(PROPERTY, 0.0001, maxHeap), maxHeap);
+  }
+
+  @Test
+  public void weightCountsTheKey() {
+    // the key of an inline XSD is the XSD itself
+    String inline = "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'/>";
+    Assert.assertTrue(CacheBudget.weigh(inline, inline.length()) > 3 * inline.length());
+    Assert.assertTrue(CacheBudget.weigh("missing.xsd", 0) > 0);
+    Assert.assertEquals(CacheBudget.weighSchema(Long.MAX_VALUE / 2), Integer.MAX_VALUE);
+  }
+}
@@ -0,0 +1,63 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXParseException;
+
+public class TestDocumentBuilders {
+  private static final String NOT_WELL_FORMED = "<a><b></a>";
+
+  private interface Parse {
+    Document parse(InputSource in) throws Exception;
+  }
+
+  // Parses a document that is not well-formed, and returns what the parser wrote to stderr.
+  private static String stderrOfFailedParse(Parse parse) throws Exception {
+    PrintStream original = System.err;
+    ByteArrayOutputStream captured = new ByteArrayOutputStream();
+    System.setErr(new PrintStream(captured, true, "UTF-8"));
+    try {
+      parse.parse(new InputSource(new StringReader(NOT_WELL_FORMED)));
+      Assert.fail("parsed a document that is not well-formed");
+    } catch (SAXParseException expected) {
+      // the error still reaches the caller
+    } finally {
+      System.setErr(original);
+    }
+    return captured.toString("UTF-8");
+  }
+
+  @Test
+  public void parseErrorsAreNotPrinted() throws Exception {
+    Assert.assertEquals(stderrOfFailedParse(in -> DocumentBuilders.parse(in, true)), "");
+    Assert.assertEquals(stderrOfFailedParse(in -> DocumentBuilders.parse(in, false)), "");
+    PayloadLimits limits = new PayloadLimits(0, 10, 0, 0);
+    Assert.assertEquals(stderrOfFailedParse(in -> DocumentBuilders.parse(in, limits)), "");
+  }
+
+  @Test
+  public void builderIsReusableAfterAnError() throws Exception {
+    stderrOfFailedParse(in -> DocumentBuilders.parse(in, true));
+    Document doc = DocumentBuilders.parse(new InputSource(new StringReader("<a><b/></a>")), true);
+    Assert.assertEquals(doc.getDocumentElement().getNodeName(), "a");
+  }
+}
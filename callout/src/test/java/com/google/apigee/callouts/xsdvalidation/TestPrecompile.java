@@ -0,0 +1,161 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/** Compiling schemas when callouts are constructed, as happens when a proxy is deployed. */
+public class TestPrecompile {
+  private static final String TYPES =
+      "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema' targetNamespace='urn:types'>"
+          + "<xs:simpleType name='code'><xs:restriction base='xs:string'/></xs:simpleType>"
+          + "</xs:schema>";
+
+  private HttpServer server;
+  private final AtomicInteger requests = new AtomicInteger();
+
+  @BeforeClass
+  public void startServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", this::handle);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+  }
+
+  @AfterClass
+  public void stopServer() {
+    server.stop(0);
+  }
+
+  // slow enough for the second callout to find the compile in progress
+  private void handle(HttpExchange exchange) throws IOException {
+    requests.incrementAndGet();
+    try {
+      Thread.sleep(500);
+    } catch (InterruptedException exc) {
+      Thread.currentThread().interrupt();
+    }
+    byte[] body = TYPES.getBytes(StandardCharsets.UTF_8);
+    exchange.sendResponseHeaders(200, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  private Map<String, String> properties() {
+    String xsd =
+        "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema' xmlns:t='urn:types'>"
+            + "<!-- "
+            + System.nanoTime()
+            + " -->"
+            + "<xs:import namespace='urn:types' schemaLocation='http://127.0.0.1:"
+            + server.getAddress().getPort()
+            + "/types-"
+            + System.nanoTime()
+            + ".xsd'/>"
+            + "<xs:element name='item' type='t:code'/>"
+            + "</xs:schema>";
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("schema", xsd);
+    return properties;
+  }
+
+  @Test
+  public void concurrentConstructionSharesOneCompile() throws Exception {
+    Map<String, String> properties = properties();
+    int callouts = 2;
+    ExecutorService executor = Executors.newFixedThreadPool(callouts);
+    CountDownLatch start = new CountDownLatch(1);
+    requests.set(0);
+    try {
+      List<Future<XsdValidatorCallout>> futures = new ArrayList<Future<XsdValidatorCallout>>();
+      for (int i = 0; i < callouts; i++) {
+        futures.add(
+            executor.submit(
+                () -> {
+                  start.await();
+                  return new XsdValidatorCallout(properties);
+                }));
+      }
+      start.countDown();
+      for (Future<XsdValidatorCallout> future : futures) {
+        // throws if either constructor failed
+        Assert.assertNotNull(future.get());
+      }
+      Assert.assertEquals(requests.get(), 1);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void importFetchIsBoundedByTheDeadline() {
+    Map<String, String> properties = properties();
+    properties.put("http-fetch-deadline-ms", "100");
+    long start = System.currentTimeMillis();
+    try {
+      new XsdValidatorCallout(properties);
+      Assert.fail("expected the compile to fail");
+    } catch (IllegalStateException exc) {
+      Assert.assertTrue(
+          exc.getMessage().startsWith("configuration error: cannot compile the schema"),
+          exc.getMessage());
+      Assert.assertTrue(exc.getMessage().endsWith("no response within 100 ms"), exc.getMessage());
+    }
+    // the server takes 500ms to respond
+    Assert.assertTrue(System.currentTimeMillis() - start < 400L, "waited past the deadline");
+  }
+
+  @Test
+  public void settingsFromVariablesDeferTheCompile() {
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put(
+        "schema",
+        "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>"
+            + "<xs:element name='a' type='xs:string'/></xs:schema>");
+    properties.put("schema-compile-wait-ms", "{compile.wait}");
+    // there is no message context at construction, so the schema is compiled on first use
+    Assert.assertNotNull(new XsdValidatorCallout(properties));
+  }
+
+  @Test
+  public void httpSettingsFromVariablesDeferTheCompile() {
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put(
+        "schema",
+        "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>"
+            + "<xs:element name='b' type='xs:string'/></xs:schema>");
+    properties.put("http-connect-timeout-ms", "{timeout.var}");
+    Assert.assertNotNull(new XsdValidatorCallout(properties));
+  }
+}
@@ -0,0 +1,74 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestResultCache {
+  private static final String DOC = "<ping xmlns='urn:example'/>";
+
+  private static XmlInput stream(String s) {
+    return XmlInput.of(new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  private static String readAll(InputStream in) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    int n;
+    while ((n = in.read(buffer)) > 0) {
+      out.write(buffer, 0, n);
+    }
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void identicalDocumentsShareAnEntry() throws Exception {
+    ResultCache cache = new ResultCache(10, 60, 1024);
+    Map<String, Object> variables = Collections.singletonMap("valid", (Object) true);
+    Pair<ResultCache.Key, XmlInput> first = cache.keyFor("fp", "0", stream(DOC));
+    Assert.assertEquals(readAll(first.right.getStream()), DOC);
+    cache.put(first.left, variables);
+
+    Assert.assertEquals(cache.get(cache.keyFor("fp", "0", stream(DOC)).left), variables);
+    Assert.assertNull(cache.get(cache.keyFor("fp", "0", stream(DOC + " ")).left));
+    Assert.assertNull(cache.get(cache.keyFor("other", "0", stream(DOC)).left));
+    Assert.assertNull(cache.get(cache.keyFor("fp", "1", stream(DOC)).left));
+  }
+
+  @Test
+  public void characterInputIsKeyedByContent() throws Exception {
+    ResultCache cache = new ResultCache(10, 60, 1024);
+    Map<String, Object> variables = Collections.singletonMap("valid", (Object) false);
+    cache.put(cache.keyFor("fp", "0", XmlInput.of(DOC)).left, variables);
+    Assert.assertEquals(cache.get(cache.keyFor("fp", "0", XmlInput.of("  " + DOC)).left), variables);
+  }
+
+  @Test
+  public void largeDocumentsAreNotEligible() throws Exception {
+    ResultCache cache = new ResultCache(10, 60, 8);
+    Pair<ResultCache.Key, XmlInput> keyed = cache.keyFor("fp", "0", stream(DOC));
+    Assert.assertNull(keyed.left);
+    // the bytes read to check the size are read again
+    Assert.assertEquals(readAll(keyed.right.getStream()), DOC);
+    Assert.assertNull(cache.keyFor("fp", "0", XmlInput.of(DOC)).left);
+  }
+}
@@ -0,0 +1,216 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.xml.sax.helpers.DefaultHandler;
+
+public class TestSchemaCache {
+  private static final String IMPORTED =
+      "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema' targetNamespace='urn:types'>"
+          + "<xs:simpleType name='code'><xs:restriction base='xs:string'/></xs:simpleType>"
+          + "</xs:schema>";
+
+  // a schema that no other test compiles, with an import that the resolver serves
+  private static XsdResource uniqueMainXsd() {
+    String xsd =
+        "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema' xmlns:t='urn:types'>"
+            + "<!-- "
+            + System.nanoTime()
+            + " -->"
+            + "<xs:import namespace='urn:types' schemaLocation='https://example.com/types.xsd'/>"
+            + "<xs:element name='item' type='t:code'/>"
+            + "</xs:schema>";
+    return XsdResource.of(xsd.getBytes(StandardCharsets.UTF_8));
+  }
+
+  // counts the compiles, and makes each one slow enough for the requests to overlap
+  private static Function<String, XsdResource> slowResolver(AtomicInteger calls, long millis) {
+    return ref -> {
+      calls.incrementAndGet();
+      try {
+        Thread.sleep(millis);
+      } catch (InterruptedException exc) {
+        Thread.currentThread().interrupt();
+      }
+      return XsdResource.of(IMPORTED.getBytes(StandardCharsets.UTF_8));
+    };
+  }
+
+  @Test
+  public void concurrentRequestsShareOneCompile() throws Exception {
+    XsdResource main = uniqueMainXsd();
+    AtomicInteger calls = new AtomicInteger();
+    Function<String, XsdResource> resolver = slowResolver(calls, 300);
+    int requests = 8;
+    ExecutorService executor = Executors.newFixedThreadPool(requests);
+    CountDownLatch start = new CountDownLatch(1);
+    try {
+      List<Future<SchemaCache.Lookup>> futures = new ArrayList<Future<SchemaCache.Lookup>>();
+      for (int i = 0; i < requests; i++) {
+        futures.add(
+            executor.submit(
+                () -> {
+                  start.await();
+                  return SchemaCache.get(
+                      main,
+                      Collections.emptyMap(),
+                      resolver,
+                      ValidatorPool.Config.defaults(),
+                      false);
+                }));
+      }
+      start.countDown();
+      int compiled = 0;
+      CompiledSchema first = null;
+      for (Future<SchemaCache.Lookup> future : futures) {
+        SchemaCache.Lookup lookup = future.get();
+        if (!lookup.hit) {
+          compiled++;
+        }
+        if (first == null) {
+          first = lookup.compiled;
+        }
+        Assert.assertSame(lookup.compiled, first);
+      }
+      Assert.assertEquals(compiled, 1);
+      Assert.assertEquals(calls.get(), 1);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void waitingRequestGivesUp() throws Exception {
+    XsdResource main = uniqueMainXsd();
+    AtomicInteger calls = new AtomicInteger();
+    Function<String, XsdResource> resolver = slowResolver(calls, 1000);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<SchemaCache.Lookup> compiling =
+          executor.submit(
+              () ->
+                  SchemaCache.get(
+                      main,
+                      Collections.emptyMap(),
+                      resolver,
+                      ValidatorPool.Config.defaults(),
+                      false));
+      while (calls.get() == 0) {
+        Thread.sleep(5);
+      }
+      try {
+        SchemaCache.get(
+            main, Collections.emptyMap(), resolver, ValidatorPool.Config.defaults(), false, 50);
+        Assert.fail("expected the wait to time out");
+      } catch (IllegalStateException exc) {
+        Assert.assertEquals(exc.getMessage(), "schema compile not complete after waiting 50ms");
+      }
+      // the compile continues, and serves later requests
+      Assert.assertFalse(compiling.get().hit);
+      SchemaCache.Lookup later =
+          SchemaCache.get(
+              main, Collections.emptyMap(), resolver, ValidatorPool.Config.defaults(), false, 50);
+      Assert.assertTrue(later.hit);
+      Assert.assertFalse(later.waited);
+      Assert.assertEquals(calls.get(), 1);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void invalidatingAnImportRemovesTheSchemasThatUseIt() throws Exception {
+    XsdResource main = uniqueMainXsd();
+    AtomicInteger calls = new AtomicInteger();
+    Function<String, XsdResource> resolver = slowResolver(calls, 0);
+    SchemaCache.Lookup first =
+        SchemaCache.get(
+            main, Collections.emptyMap(), resolver, ValidatorPool.Config.defaults(), false);
+    String imported = XsdResource.of(IMPORTED.getBytes(StandardCharsets.UTF_8)).getDigest();
+    Assert.assertTrue(first.compiled.sourceDigests.contains(imported));
+    Assert.assertTrue(first.compiled.sourceDigests.contains(main.getDigest()));
+    Assert.assertTrue(first.compiled.fetchedSources);
+
+    // other schemas may import the same XSD
+    Assert.assertTrue(SchemaCache.invalidateDependents(imported) >= 1);
+    SchemaCache.Lookup second =
+        SchemaCache.get(
+            main, Collections.emptyMap(), resolver, ValidatorPool.Config.defaults(), false);
+    Assert.assertFalse(second.hit);
+    Assert.assertNotSame(second.compiled, first.compiled);
+    Assert.assertEquals(calls.get(), 2);
+  }
+
+  @Test
+  public void eachPoolConfigurationGetsItsOwnPool() throws Exception {
+    XsdResource main = uniqueMainXsd();
+    AtomicInteger calls = new AtomicInteger();
+    Function<String, XsdResource> resolver = slowResolver(calls, 0);
+    // another policy compiled the schema first, with the default pool
+    SchemaCache.Lookup defaults =
+        SchemaCache.get(
+            main, Collections.emptyMap(), resolver, ValidatorPool.Config.defaults(), false);
+
+    ValidatorPool.Config failing =
+        new ValidatorPool.Config(1, ValidatorPool.ExhaustedAction.FAIL, 0);
+    SchemaCache.Lookup failLookup =
+        SchemaCache.get(main, Collections.emptyMap(), resolver, failing, false);
+    Assert.assertFalse(failLookup.hit);
+    Assert.assertNotSame(failLookup.compiled, defaults.compiled);
+    ValidatorPool pool = failLookup.compiled.validatorPool;
+    ValidatorPool.Lease lease = pool.checkout(new DefaultHandler());
+    try {
+      pool.checkout(new DefaultHandler());
+      Assert.fail("expected the pool to be exhausted");
+    } catch (IllegalStateException exc) {
+      Assert.assertEquals(exc.getMessage(), "validator pool exhausted");
+    } finally {
+      pool.checkin(lease);
+    }
+
+    ValidatorPool.Config waiting =
+        new ValidatorPool.Config(1, ValidatorPool.ExhaustedAction.WAIT, 50);
+    pool =
+        SchemaCache.get(main, Collections.emptyMap(), resolver, waiting, false)
+            .compiled
+            .validatorPool;
+    lease = pool.checkout(new DefaultHandler());
+    try {
+      pool.checkout(new DefaultHandler());
+      Assert.fail("expected the pool to be exhausted");
+    } catch (IllegalStateException exc) {
+      Assert.assertEquals(exc.getMessage(), "validator pool exhausted after waiting 50ms");
+    } finally {
+      pool.checkin(lease);
+    }
+
+    // the same configuration finds the same entry
+    Assert.assertSame(
+        SchemaCache.get(main, Collections.emptyMap(), resolver, failing, false).compiled,
+        failLookup.compiled);
+  }
+}
@@ -0,0 +1,124 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestSchemaCatalog {
+
+  private static Properties manifest(String text) throws Exception {
+    Properties p = new Properties();
+    p.load(new StringReader(text));
+    return p;
+  }
+
+  @Test
+  public void setsAreParsed() throws Exception {
+    Map<String, SchemaCatalog.SchemaSet> sets =
+        SchemaCatalog.parse(
+            manifest(
+                "orders.main = xsd/orders.xsd\n"
+                    + "orders.version = 2.1\n"
+                    + "orders.import.common.xsd = xsd/common.xsd\n"
+                    + "invoices.main = xsd/invoices.xsd\n"));
+    Assert.assertEquals(sets.keySet().toString(), "[invoices, orders]");
+    SchemaCatalog.SchemaSet orders = sets.get("orders");
+    Assert.assertEquals(orders.main, "xsd/orders.xsd");
+    Assert.assertEquals(orders.version, "2.1");
+    Assert.assertEquals(orders.imports.get("common.xsd"), "xsd/common.xsd");
+    Assert.assertNull(sets.get("invoices").version);
+  }
+
+  @Test
+  public void malformedManifestIsRejected() throws Exception {
+    String[] manifests = {
+      "orders.version = 1\n", "orders.mian = xsd/orders.xsd\n", "orders = xsd/orders.xsd\n"
+    };
+    for (String text : manifests) {
+      try {
+        SchemaCatalog.parse(manifest(text));
+        Assert.fail("accepted: " + text);
+      } catch (IllegalStateException expected) {
+        Assert.assertTrue(expected.getMessage().startsWith("schema catalog: "));
+      }
+    }
+  }
+
+  @Test
+  public void missingResourceIsReported() {
+    SchemaCatalog catalog =
+        SchemaCatalog.load("/schema-catalog.properties", name -> XsdResource.of(new byte[0]), null);
+    try {
+      catalog.get("purchase-order");
+      Assert.fail("compiled without its XSD");
+    } catch (IllegalStateException expected) {
+      Assert.assertEquals(
+          expected.getMessage(),
+          "cannot compile schema set purchase-order: "
+              + "resource not found: test-data/schema-for-purchase-order.xsd");
+    }
+  }
+
+  @Test
+  public void malformedManifestIsReportedWhenASetIsNamed() {
+    SchemaCatalog catalog =
+        SchemaCatalog.load("/schema-catalog-malformed.properties", name -> null, null);
+    Assert.assertTrue(catalog.names().isEmpty());
+    try {
+      catalog.getSet("orders");
+      Assert.fail("named a set in a malformed catalog");
+    } catch (IllegalStateException expected) {
+      Assert.assertEquals(expected.getMessage(), "schema catalog: invalid entry orders");
+    }
+  }
+
+  @Test
+  public void failedCompileIsRetried() throws Exception {
+    AtomicBoolean available = new AtomicBoolean(false);
+    SchemaCatalog catalog =
+        SchemaCatalog.load(
+            "/schema-catalog.properties",
+            name -> {
+              if (!available.get()) {
+                return XsdResource.of(new byte[0]);
+              }
+              try {
+                return XsdResource.of(
+                    Files.readAllBytes(Paths.get(getClass().getResource("/" + name).toURI())));
+              } catch (Exception exc) {
+                throw new IllegalStateException(exc);
+              }
+            },
+            null);
+    try {
+      catalog.get("purchase-order");
+      Assert.fail("compiled without its XSD");
+    } catch (IllegalStateException expected) {
+      Assert.assertEquals(
+          expected.getMessage(),
+          "cannot compile schema set purchase-order: "
+              + "resource not found: test-data/schema-for-purchase-order.xsd");
+    }
+    available.set(true);
+    Assert.assertNotNull(catalog.get("purchase-order"));
+  }
+}
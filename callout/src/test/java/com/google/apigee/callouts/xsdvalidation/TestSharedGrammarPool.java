@@ -0,0 +1,128 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+import com.apigee.flow.execution.ExecutionResult;
+import com.apigee.flow.message.MessageContext;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Map;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.xml.sax.SAXException;
+
+public class TestSharedGrammarPool {
+  private static final String testDataDir = "src/test/resources/test-data";
+
+  private static XsdResource read(String dir, String name) throws IOException {
+    return XsdResource.of(Files.readAllBytes(Paths.get(dir, name)));
+  }
+
+  @Test
+  public void importedGrammarIsParsedOnce() throws Exception {
+    Map<String, XsdResource> deps =
+        Collections.singletonMap(
+            "soap-envelope-1.1.xsd", read("src/main/resources", "soap-envelope-1.1.xsd"));
+    SharedGrammarPool.invalidateAll();
+
+    SharedGrammarPool.compile(
+        read(testDataDir, "order-with-soap-fault.xsd"), deps, ref -> null);
+    long hitsBefore = SharedGrammarPool.hitCount();
+    Schema schema =
+        SharedGrammarPool.compile(
+            read(testDataDir, "order-status-with-soap-fault.xsd"), deps, ref -> null);
+    Assert.assertEquals(SharedGrammarPool.hitCount(), hitsBefore + 1, "pool hits");
+
+    // the shared grammar is usable from the second schema
+    schema
+        .newValidator()
+        .validate(
+            new StreamSource(
+                new StringReader(
+                    "<status xmlns='urn:example:order-status'"
+                        + " xmlns:soap='http://schemas.xmlsoap.org/soap/envelope/'>"
+                        + "<soap:Fault><faultcode xmlns=''>soap:Client</faultcode>"
+                        + "<faultstring xmlns=''>no such order</faultstring></soap:Fault></status>")));
+  }
+
+  @Test
+  public void schemaSeesOnlyItsOwnGrammars() throws Exception {
+    Map<String, XsdResource> deps =
+        Collections.singletonMap(
+            "soap-envelope-1.1.xsd", read("src/main/resources", "soap-envelope-1.1.xsd"));
+    SharedGrammarPool.compile(
+        read(testDataDir, "order-status-with-soap-fault.xsd"), deps, ref -> null);
+    Schema schema =
+        SharedGrammarPool.compile(read(testDataDir, "order-with-soap-fault.xsd"), deps, ref -> null);
+    try {
+      schema
+          .newValidator()
+          .validate(
+              new StreamSource(
+                  new StringReader(
+                      "<status xmlns='urn:example:order-status'><shipped>2021-10-21</shipped>"
+                          + "</status>")));
+      Assert.fail("expected the element from the other schema to be rejected");
+    } catch (SAXException expected) {
+      Assert.assertTrue(expected.getMessage().contains("cvc-elt.1"), expected.getMessage());
+    }
+  }
+
+  @Test
+  public void invalidSchemaIsReported() throws Exception {
+    try {
+      SharedGrammarPool.compile(XsdResource.of("this-is-not-valid-xsd"), null, ref -> null);
+      Assert.fail("expected an exception");
+    } catch (SAXException expected) {
+      Assert.assertTrue(
+          expected.getMessage().endsWith("Content is not allowed in prolog."),
+          expected.getMessage());
+    }
+  }
+
+  @Test
+  public void cacheStatsDoNotNeedXerces() throws Exception {
+    // the callout with only the jars a proxy has when it does not use the pool
+    URL[] jars = {
+      XsdValidatorCallout.class.getProtectionDomain().getCodeSource().getLocation(),
+      Caffeine.class.getProtectionDomain().getCodeSource().getLocation(),
+      MessageContext.class.getProtectionDomain().getCodeSource().getLocation(),
+      ExecutionResult.class.getProtectionDomain().getCodeSource().getLocation()
+    };
+    try (URLClassLoader loader = new URLClassLoader(jars, null)) {
+      try {
+        loader.loadClass("org.apache.xerces.xni.XNIException");
+        Assert.fail("Xerces-J is visible");
+      } catch (ClassNotFoundException expected) {
+        // as in a proxy without xercesImpl
+      }
+      Class<?> callout = loader.loadClass(XsdValidatorCallout.class.getName());
+      Method cacheStats = callout.getMethod("cacheStats");
+      Map<?, ?> stats = (Map<?, ?>) cacheStats.invoke(null);
+      Assert.assertEquals(stats.keySet().toString(), "[file, inline, url, schema, grammar]");
+      Object grammar = stats.get("grammar");
+      Assert.assertEquals(grammar.getClass().getField("entries").get(grammar), 0L);
+    }
+  }
+}
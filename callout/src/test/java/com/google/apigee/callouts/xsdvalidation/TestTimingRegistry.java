@@ -0,0 +1,64 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+import java.util.Map;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestTimingRegistry {
+
+  @Test
+  public void bucketsCoverEachValue() {
+    long[] values = {0, 1, 7, 8, 9, 15, 16, 1000, 123456789, Long.MAX_VALUE};
+    for (long value : values) {
+      int index = TimingRegistry.Histogram.indexOf(value);
+      Assert.assertTrue(TimingRegistry.Histogram.upperBoundOf(index) >= value, "value " + value);
+      if (index > 0) {
+        Assert.assertTrue(
+            TimingRegistry.Histogram.upperBoundOf(index - 1) < value, "value " + value);
+      }
+    }
+  }
+
+  @Test
+  public void percentilesAreWithinBucketPrecision() {
+    TimingRegistry.Histogram histogram = new TimingRegistry.Histogram();
+    for (long i = 1; i <= 1000; i++) {
+      histogram.record(i * 1000);
+    }
+    TimingRegistry.Histogram.Snapshot s = histogram.snapshot();
+    Assert.assertEquals(s.count, 1000);
+    Assert.assertEquals(s.max, 1000000);
+    Assert.assertTrue(s.p50 >= 500000 && s.p50 <= 500000 * 1.125, "p50 " + s.p50);
+    Assert.assertTrue(s.p99 >= 990000 && s.p99 <= 1000000, "p99 " + s.p99);
+  }
+
+  @Test
+  public void recordsOnlyCompletedPhases() {
+    TimingRegistry.reset();
+    Timings timings = Timings.start();
+    timings.lap(Timings.Phase.PROPERTIES);
+    timings.lap(Timings.Phase.VALIDATE);
+    timings.stop();
+    TimingRegistry.record("abc", timings);
+    TimingRegistry.record("abc", Timings.DISABLED);
+
+    Map<String, TimingRegistry.Histogram.Snapshot> phases = TimingRegistry.snapshot().get("abc");
+    Assert.assertEquals(phases.keySet().toString(), "[properties, validate, total]");
+    Assert.assertEquals(phases.get(TimingRegistry.TOTAL).count, 1);
+    Assert.assertTrue(TimingRegistry.dump().contains("schema=abc phase=validate count=1 "));
+  }
+}
@@ -0,0 +1,368 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import javax.xml.transform.stream.StreamSource;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.xml.sax.SAXException;
+
+public class TestUrlResourceCache {
+  private static final String XSD =
+      "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>"
+          + "<xs:element name='a' type='xs:string'/></xs:schema>";
+  private static final String ETAG = "\"v1\"";
+
+  private HttpServer server;
+  private ExecutorService fetches;
+  private final AtomicInteger requests = new AtomicInteger();
+  private final AtomicInteger conditionalRequests = new AtomicInteger();
+  private volatile int status;
+  private volatile long delayMillis;
+  private volatile String content;
+  private volatile String etag;
+
+  @BeforeClass
+  public void startServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", this::handle);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+    fetches = UrlResourceCache.newFetchExecutor(2, 2);
+  }
+
+  @AfterClass
+  public void stopServer() {
+    server.stop(0);
+    fetches.shutdownNow();
+  }
+
+  @BeforeMethod
+  public void resetServer() {
+    requests.set(0);
+    conditionalRequests.set(0);
+    status = 200;
+    delayMillis = 0;
+    content = XSD;
+    etag = ETAG;
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    requests.incrementAndGet();
+    try {
+      if (delayMillis > 0) {
+        Thread.sleep(delayMillis);
+      }
+    } catch (InterruptedException exc) {
+      Thread.currentThread().interrupt();
+    }
+    if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+      conditionalRequests.incrementAndGet();
+      if (status == 200) {
+        exchange.sendResponseHeaders(304, -1);
+        exchange.close();
+        return;
+      }
+    }
+    byte[] body = content.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("ETag", etag);
+    exchange.sendResponseHeaders(
+        exchange.getRequestURI().getPath().startsWith("/missing") ? 404 : status, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  private static String contentOf(XsdResource resource) throws IOException {
+    byte[] bytes = new byte[resource.length()];
+    try (InputStream in = resource.openStream()) {
+      in.read(bytes);
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private String url(String path) {
+    return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+  }
+
+  private static UrlResourceCache newCache(long initialBackoffMillis) {
+    // refreshes run on the calling thread, so the tests need not wait for them
+    return new UrlResourceCache(
+        TimeUnit.MINUTES.toMillis(10),
+        TimeUnit.MINUTES.toMillis(10),
+        initialBackoffMillis,
+        Runnable::run);
+  }
+
+  @Test
+  public void cachedAfterFirstFetch() throws IOException {
+    UrlResourceCache cache = newCache(1000L);
+    String url = url("/cached.xsd");
+    Assert.assertEquals(contentOf(cache.get(url, UrlResourceCache.Settings.defaults())), XSD);
+    Assert.assertEquals(contentOf(cache.get(url, UrlResourceCache.Settings.defaults())), XSD);
+    Assert.assertEquals(requests.get(), 1, "requests");
+  }
+
+  @Test
+  public void refreshUsesConditionalGet() throws IOException {
+    UrlResourceCache cache = newCache(1000L);
+    String url = url("/conditional.xsd");
+    cache.get(url, UrlResourceCache.Settings.defaults());
+    cache.refresh(url);
+    Assert.assertEquals(conditionalRequests.get(), 1, "conditional requests");
+    Assert.assertEquals(contentOf(cache.get(url, UrlResourceCache.Settings.defaults())), XSD);
+    Assert.assertEquals(requests.get(), 2, "requests");
+  }
+
+  @Test
+  public void failedRefreshKeepsLastGoodCopy() throws IOException {
+    UrlResourceCache cache = newCache(1000L);
+    String url = url("/stale.xsd");
+    cache.get(url, UrlResourceCache.Settings.defaults());
+    status = 500;
+    cache.refresh(url);
+    Assert.assertEquals(contentOf(cache.get(url, UrlResourceCache.Settings.defaults())), XSD);
+  }
+
+  @Test
+  public void changedContentIsReported() throws IOException {
+    List<String> changes = new ArrayList<String>();
+    UrlResourceCache cache =
+        new UrlResourceCache(
+            TimeUnit.MINUTES.toMillis(10),
+            TimeUnit.MINUTES.toMillis(10),
+            1000L,
+            Runnable::run,
+            fetches,
+            (changed, previous) -> changes.add(changed + " " + previous.getDigest()));
+    String url = url("/changing.xsd");
+    XsdResource first = cache.get(url, UrlResourceCache.Settings.defaults());
+
+    // not modified
+    cache.refresh(url);
+    Assert.assertEquals(changes.size(), 0, changes.toString());
+
+    content = XSD.replace("xs:string", "xs:int");
+    etag = "\"v2\"";
+    cache.refresh(url);
+    Assert.assertEquals(changes.toString(), "[" + url + " " + first.getDigest() + "]");
+    Assert.assertEquals(
+        contentOf(cache.get(url, UrlResourceCache.Settings.defaults())), content);
+  }
+
+  @Test
+  public void changedImportRecompilesTheSchema() throws Exception {
+    String url = url("/types-" + System.nanoTime() + ".xsd");
+    content =
+        "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema' targetNamespace='urn:types'>"
+            + "<xs:simpleType name='code'><xs:restriction base='xs:string'/></xs:simpleType>"
+            + "</xs:schema>";
+    String mainXsd =
+        "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema' xmlns:t='urn:types'>"
+            + "<xs:import namespace='urn:types' schemaLocation='"
+            + url
+            + "'/><xs:element name='item' type='t:code'/></xs:schema>";
+    // as wired by the callout: a changed XSD removes the schemas compiled from the previous copy
+    UrlResourceCache cache =
+        new UrlResourceCache(
+            TimeUnit.MINUTES.toMillis(10),
+            TimeUnit.MINUTES.toMillis(10),
+            1000L,
+            Runnable::run,
+            fetches,
+            (changed, previous) -> SchemaCache.invalidateDependents(previous.getDigest()));
+    Function<String, XsdResource> resolver =
+        ref -> cache.get(ref, UrlResourceCache.Settings.defaults());
+    XsdResource main = XsdResource.of(mainXsd);
+
+    SchemaCache.Lookup first =
+        SchemaCache.get(
+            main, Collections.emptyMap(), resolver, ValidatorPool.Config.defaults(), false);
+    Assert.assertTrue(first.compiled.fetchedSources);
+    validate(first.compiled, "<item>abc</item>");
+
+    content = content.replace("xs:string", "xs:int");
+    etag = "\"v2\"";
+    cache.refresh(url);
+    SchemaCache.Lookup second =
+        SchemaCache.get(
+            main, Collections.emptyMap(), resolver, ValidatorPool.Config.defaults(), false);
+    Assert.assertFalse(second.hit, "served the schema compiled from the previous copy");
+    validate(second.compiled, "<item>42</item>");
+    try {
+      validate(second.compiled, "<item>abc</item>");
+      Assert.fail("expected the changed type to apply");
+    } catch (SAXException expected) {
+      // not an int
+    }
+  }
+
+  private static void validate(CompiledSchema compiled, String xml) throws Exception {
+    compiled.schema.newValidator().validate(new StreamSource(new StringReader(xml)));
+  }
+
+  @Test
+  public void failureIsNotCachedAsContent() throws Exception {
+    UrlResourceCache cache = newCache(200L);
+    String url = url("/failing.xsd");
+    status = 404;
+    try {
+      cache.get(url, UrlResourceCache.Settings.defaults());
+      Assert.fail("expected an exception");
+    } catch (IllegalStateException exc) {
+      Assert.assertTrue(exc.getMessage().contains("status 404"), exc.getMessage());
+    }
+
+    // within the backoff period, no new request is made
+    try {
+      cache.get(url, UrlResourceCache.Settings.defaults());
+      Assert.fail("expected an exception");
+    } catch (IllegalStateException exc) {
+      Assert.assertTrue(exc.getMessage().contains("will retry later"), exc.getMessage());
+    }
+    Assert.assertEquals(requests.get(), 1, "requests");
+
+    // after the backoff period, the next request fetches again
+    status = 200;
+    Thread.sleep(300L);
+    Assert.assertEquals(contentOf(cache.get(url, UrlResourceCache.Settings.defaults())), XSD);
+    Assert.assertEquals(requests.get(), 2, "requests");
+  }
+
+  @Test
+  public void readTimeoutIsApplied() {
+    UrlResourceCache cache = newCache(1000L);
+    delayMillis = 2000L;
+    long start = System.currentTimeMillis();
+    try {
+      cache.get(url("/slow.xsd"), new UrlResourceCache.Settings(1000, 200));
+      Assert.fail("expected an exception");
+    } catch (IllegalStateException exc) {
+      Assert.assertTrue(exc.getMessage().contains("timed out"), exc.getMessage());
+    }
+    Assert.assertTrue(System.currentTimeMillis() - start < 1500L, "returned before the server did");
+  }
+
+  @Test
+  public void getAllFetchesConcurrently() throws IOException {
+    UrlResourceCache cache = newCache(1000L);
+    delayMillis = 500L;
+    List<String> urls =
+        Arrays.asList(url("/a.xsd"), url("/b.xsd"), url("/c.xsd"), url("/d.xsd"), url("/a.xsd"));
+    long start = System.currentTimeMillis();
+    UrlResourceCache.Batch batch = cache.getAll(urls, UrlResourceCache.Settings.defaults());
+    long elapsed = System.currentTimeMillis() - start;
+    Assert.assertEquals(batch.resources.size(), 4);
+    Assert.assertTrue(batch.failures.isEmpty(), batch.failures.toString());
+    Assert.assertEquals(contentOf(batch.resources.get(url("/d.xsd"))), XSD);
+    Assert.assertEquals(requests.get(), 4, "requests");
+    Assert.assertTrue(elapsed < 1500L, "fetched one after another: " + elapsed + " ms");
+
+    // all cached now
+    delayMillis = 0;
+    batch = cache.getAll(urls, UrlResourceCache.Settings.defaults());
+    Assert.assertEquals(batch.resources.size(), 4);
+    Assert.assertEquals(requests.get(), 4, "requests");
+  }
+
+  @Test
+  public void getAllReportsEachFailure() {
+    UrlResourceCache cache = newCache(1000L);
+    List<String> urls = Arrays.asList(url("/missing1.xsd"), url("/ok.xsd"), url("/missing2.xsd"));
+    UrlResourceCache.Batch batch = cache.getAll(urls, UrlResourceCache.Settings.defaults());
+    Assert.assertEquals(batch.resources.keySet().toString(), "[" + url("/ok.xsd") + "]");
+    Assert.assertEquals(batch.failures.size(), 2);
+    Assert.assertTrue(
+        batch.failures.get(url("/missing2.xsd")).contains("status 404"),
+        batch.failures.toString());
+  }
+
+  @Test
+  public void getAllStopsWaitingAtTheDeadline() {
+    UrlResourceCache cache = newCache(1000L);
+    delayMillis = 1500L;
+    List<String> urls = Arrays.asList(url("/slow1.xsd"), url("/slow2.xsd"));
+    long start = System.currentTimeMillis();
+    UrlResourceCache.Batch batch =
+        cache.getAll(urls, new UrlResourceCache.Settings(1000, 5000, 300));
+    Assert.assertTrue(System.currentTimeMillis() - start < 1200L, "waited past the deadline");
+    Assert.assertEquals(batch.failures.size(), 2);
+    Assert.assertTrue(
+        batch.failures.get(url("/slow1.xsd")).endsWith("no response within 300 ms"),
+        batch.failures.toString());
+  }
+
+  @Test
+  public void getAllAppliesTheDeadlineToASingleUrl() {
+    UrlResourceCache cache = newCache(1000L);
+    delayMillis = 1500L;
+    long start = System.currentTimeMillis();
+    UrlResourceCache.Batch batch =
+        cache.getAll(
+            Arrays.asList(url("/slow-single.xsd")), new UrlResourceCache.Settings(1000, 5000, 300));
+    Assert.assertTrue(System.currentTimeMillis() - start < 1200L, "waited past the deadline");
+    Assert.assertTrue(
+        batch.failures.get(url("/slow-single.xsd")).endsWith("no response within 300 ms"),
+        batch.failures.toString());
+  }
+
+  @Test
+  public void getAllRejectsFetchesWhenThePoolIsFull() {
+    // one thread, and room in the queue for one more fetch
+    ExecutorService fetchExecutor = UrlResourceCache.newFetchExecutor(1, 1);
+    try {
+      UrlResourceCache cache =
+          new UrlResourceCache(
+              TimeUnit.MINUTES.toMillis(10),
+              TimeUnit.MINUTES.toMillis(10),
+              1000L,
+              Runnable::run,
+              fetchExecutor,
+              (changed, previous) -> {});
+      delayMillis = 300L;
+      List<String> urls =
+          Arrays.asList(url("/p1.xsd"), url("/p2.xsd"), url("/p3.xsd"), url("/p4.xsd"));
+      UrlResourceCache.Batch batch = cache.getAll(urls, UrlResourceCache.Settings.defaults());
+      Assert.assertEquals(batch.resources.size(), 2);
+      Assert.assertEquals(batch.failures.size(), 2);
+      Assert.assertEquals(
+          batch.failures.get(url("/p4.xsd")),
+          "cannot retrieve " + url("/p4.xsd") + ": too many fetches in progress");
+      Assert.assertEquals(requests.get(), 2, "requests");
+    } finally {
+      fetchExecutor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,107 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class TestValidationEngine {
+  private static final Path testDataDir = Paths.get("src/test/resources/test-data");
+
+  private CompiledSchema compiled;
+
+  @BeforeClass
+  public void compileSchema() throws Exception {
+    compiled =
+        SchemaCache.get(
+                XsdResource.of(
+                    Files.readAllBytes(testDataDir.resolve("schema-for-purchase-order.xsd"))),
+                null,
+                null,
+                ValidatorPool.Config.defaults(),
+                false)
+            .compiled;
+  }
+
+  private static XmlInput input(String name) throws Exception {
+    return XmlInput.of(new String(Files.readAllBytes(testDataDir.resolve(name)), "UTF-8"));
+  }
+
+  @Test
+  public void validatesWithoutAMessageContext() throws Exception {
+    ValidationEngine engine = new ValidationEngine(false, true, null);
+    ValidationResult valid = engine.validate(compiled, input("purchase-order.xml"), null, null, 0);
+    Assert.assertTrue(valid.valid);
+    Assert.assertNull(valid.failure);
+
+    ValidationResult invalid =
+        engine.validate(
+            compiled, input("purchase-order-modified-billto-invalid.xml"), null, null, 0);
+    Assert.assertFalse(invalid.valid);
+    Assert.assertEquals(invalid.errorCount, 1);
+    Assert.assertEquals(invalid.paths.get(0), "#document/purchaseOrder[1]/billTo[1]/state[1]");
+  }
+
+  @Test
+  public void reportsFailuresInTheResult() throws Exception {
+    ValidationEngine engine = new ValidationEngine(false, true, null);
+    ValidationResult result =
+        engine.validate(
+            compiled,
+            input("purchase-order.xml"),
+            Pair.of("echoInclude", null),
+            new PayloadLimits(0, 2, 0, 0),
+            0);
+    Assert.assertFalse(result.valid);
+    Assert.assertEquals(
+        result.failure, "java.lang.IllegalStateException: unacceptable root element");
+
+    result =
+        engine.validate(
+            compiled, input("purchase-order.xml"), null, new PayloadLimits(0, 2, 0, 0), 0);
+    Assert.assertEquals(result.failure, "payload limit exceeded: max-depth 2");
+  }
+
+  @Test
+  public void commandLineValidatesATree() throws Exception {
+    Path dir = Files.createTempDirectory("xsd-cli");
+    Files.copy(testDataDir.resolve("purchase-order.xml"), dir.resolve("a.xml"));
+    Files.createDirectory(dir.resolve("nested"));
+    Files.copy(
+        testDataDir.resolve("purchase-order-modified-billto-invalid.xml"),
+        dir.resolve("nested/b.xml"));
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    int status =
+        ValidationCli.run(
+            new String[] {
+              "--schema",
+              testDataDir.resolve("schema-for-purchase-order.xsd").toString(),
+              "--threads",
+              "2",
+              dir.toString()
+            },
+            new PrintStream(bytes, true, "UTF-8"));
+    String output = bytes.toString("UTF-8");
+    Assert.assertEquals(status, 1, output);
+    Assert.assertTrue(output.contains("b.xml: not valid"), output);
+    Assert.assertTrue(output.contains("2 files, 1 valid, 1 not valid"), output);
+  }
+}
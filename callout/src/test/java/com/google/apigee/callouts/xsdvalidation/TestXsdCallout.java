@@ -181,6 +181,10 @@ public class TestXsdCallout {
     }
 
     messageContentStream = getInputStream(tc);
+    if (tc.getInput() != null) {
+      // the default source for the callout is the message variable
+      messageContext.setVariable("message", message);
+    }
 
     XsdValidatorCallout callout = new XsdValidatorCallout(tc.getProperties());
     ExecutionResult actualResult = callout.execute(messageContext, exeCtxt);
@@ -276,6 +280,158 @@ public class TestXsdCallout {
     System.out.println("=========================================================");
   }
 
+  @Test
+  public void cacheInvalidationRemovesDependentSchemas() throws Exception {
+    String xsd =
+        "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>"
+            + "<!-- "
+            + System.nanoTime()
+            + " --><xs:element name='ping' type='xs:string'/></xs:schema>";
+    Map<String, String> validate = new HashMap<String, String>();
+    validate.put("schema", xsd);
+    validate.put("source", "doc");
+    // compile on the first request, through the schema cache
+    validate.put("eager-compile", "false");
+    messageContext.setVariable("doc", "<ping>hello</ping>");
+
+    new XsdValidatorCallout(validate).execute(messageContext, exeCtxt);
+    Assert.assertEquals(messageContext.getVariable("xsd_valid"), Boolean.TRUE);
+    Assert.assertEquals(messageContext.getVariable("xsd_schema_cache_hit"), Boolean.FALSE);
+    new XsdValidatorCallout(validate).execute(messageContext, exeCtxt);
+    Assert.assertEquals(messageContext.getVariable("xsd_schema_cache_hit"), Boolean.TRUE);
+
+    Map<String, String> invalidate = new HashMap<String, String>();
+    invalidate.put("cache-action", "invalidate");
+    invalidate.put("cache-invalidate", xsd);
+    ExecutionResult result = new XsdValidatorCallout(invalidate).execute(messageContext, exeCtxt);
+    Assert.assertEquals(result, ExecutionResult.SUCCESS);
+    Assert.assertEquals((int) messageContext.getVariable("xsd_cache_invalidated_resources"), 1);
+    Assert.assertEquals((int) messageContext.getVariable("xsd_cache_invalidated_schemas"), 1);
+    Assert.assertNotNull(messageContext.getVariable("xsd_cache_inline_entries"));
+    Assert.assertTrue((Long) messageContext.getVariable("xsd_cache_schema_loads") > 0);
+
+    // the next request compiles the schema again
+    new XsdValidatorCallout(validate).execute(messageContext, exeCtxt);
+    Assert.assertEquals(messageContext.getVariable("xsd_schema_cache_hit"), Boolean.FALSE);
+
+    // an XSD that is not cached is not an error
+    invalidate.put("cache-invalidate", "https://example.com/never-retrieved.xsd");
+    result = new XsdValidatorCallout(invalidate).execute(messageContext, exeCtxt);
+    Assert.assertEquals(result, ExecutionResult.SUCCESS);
+    Assert.assertEquals((int) messageContext.getVariable("xsd_cache_invalidated_resources"), 0);
+  }
+
+  @Test
+  public void cacheInvalidationReachesPrecompiledSchemas() throws Exception {
+    String xsd =
+        "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>"
+            + "<!-- "
+            + System.nanoTime()
+            + " --><xs:element name='ping' type='xs:string'/></xs:schema>";
+    Map<String, String> validate = new HashMap<String, String>();
+    validate.put("schema", xsd);
+    validate.put("source", "doc");
+    messageContext.setVariable("doc", "<ping>hello</ping>");
+    // compiled here, with the default eager-compile
+    XsdValidatorCallout callout = new XsdValidatorCallout(validate);
+    callout.execute(messageContext, exeCtxt);
+    Assert.assertEquals(messageContext.getVariable("xsd_valid"), Boolean.TRUE);
+    Assert.assertEquals(messageContext.getVariable("xsd_schema_cache_hit"), Boolean.TRUE);
+
+    Map<String, String> invalidate = new HashMap<String, String>();
+    invalidate.put("cache-action", "invalidate");
+    invalidate.put("cache-invalidate", xsd);
+    new XsdValidatorCallout(invalidate).execute(messageContext, exeCtxt);
+    Assert.assertEquals((int) messageContext.getVariable("xsd_cache_invalidated_schemas"), 1);
+
+    // the same policy compiles the schema again, and then holds on to the new one
+    callout.execute(messageContext, exeCtxt);
+    Assert.assertEquals(messageContext.getVariable("xsd_valid"), Boolean.TRUE);
+    Assert.assertEquals(messageContext.getVariable("xsd_schema_cache_hit"), Boolean.FALSE);
+    callout.execute(messageContext, exeCtxt);
+    Assert.assertEquals(messageContext.getVariable("xsd_schema_cache_hit"), Boolean.TRUE);
+  }
+
+  @Test
+  public void cacheInvalidationReachesSchemaSets() throws Exception {
+    Map<String, String> validate = new HashMap<String, String>();
+    validate.put("schema-set", "purchase-order");
+    validate.put("source", "doc");
+    messageContext.setVariable(
+        "doc",
+        new String(Files.readAllBytes(Paths.get(testDataDir, "purchase-order.xml"))));
+    XsdValidatorCallout callout = new XsdValidatorCallout(validate);
+    callout.execute(messageContext, exeCtxt);
+    Assert.assertEquals(messageContext.getVariable("xsd_valid"), Boolean.TRUE);
+
+    Map<String, String> invalidate = new HashMap<String, String>();
+    invalidate.put("cache-action", "invalidate");
+    invalidate.put("cache-invalidate", "file://test-data/schema-for-purchase-order.xsd");
+    ExecutionResult result = new XsdValidatorCallout(invalidate).execute(messageContext, exeCtxt);
+    Assert.assertEquals(result, ExecutionResult.SUCCESS);
+    Assert.assertEquals((int) messageContext.getVariable("xsd_cache_invalidated_resources"), 1);
+
+    // the set is compiled again, from the XSD as it is now
+    callout.execute(messageContext, exeCtxt);
+    Assert.assertEquals(messageContext.getVariable("xsd_valid"), Boolean.TRUE);
+    Assert.assertEquals(messageContext.getVariable("xsd_schema_cache_hit"), Boolean.FALSE);
+    callout.execute(messageContext, exeCtxt);
+    Assert.assertEquals(messageContext.getVariable("xsd_schema_cache_hit"), Boolean.TRUE);
+  }
+
+  @Test
+  public void schemaSetRejectsPoolSettings() {
+    String[][] settings = {{"validator-pool-size", "8"}, {"shared-grammar-pool", "true"}};
+    for (String[] setting : settings) {
+      Map<String, String> properties = new HashMap<String, String>();
+      properties.put("schema-set", "purchase-order");
+      properties.put(setting[0], setting[1]);
+      try {
+        new XsdValidatorCallout(properties);
+        Assert.fail("expected a configuration error for " + setting[0]);
+      } catch (IllegalStateException exc) {
+        Assert.assertEquals(
+            exc.getMessage(),
+            "configuration error: " + setting[0] + " does not apply to schema-set");
+      }
+    }
+  }
+
+  @Test
+  public void resultCacheReplaysAnInvalidOutcome() throws Exception {
+    String doc =
+        new String(
+            Files.readAllBytes(
+                Paths.get(testDataDir, "purchase-order-modified-billto-invalid.xml")));
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("schema-set", "purchase-order");
+    properties.put("source", "doc");
+    properties.put("result-cache", "true");
+    properties.put("throw-fault-on-invalid", "true");
+    XsdValidatorCallout callout = new XsdValidatorCallout(properties);
+
+    messageContext.setVariable("doc", doc);
+    ExecutionResult first = callout.execute(messageContext, exeCtxt);
+    Assert.assertEquals(first, ExecutionResult.ABORT);
+    Assert.assertEquals(messageContext.getVariable("xsd_result_cache_hit"), Boolean.FALSE);
+    Object error = messageContext.getVariable("xsd_error_1");
+    Object paths = messageContext.getVariable("xsd_failing_paths");
+    Assert.assertNotNull(error);
+
+    // a fresh context, so every variable seen below was set by the second run
+    beforeMethod();
+    messageContext.setVariable("doc", doc);
+    ExecutionResult second = callout.execute(messageContext, exeCtxt);
+    Assert.assertEquals(second, ExecutionResult.ABORT);
+    Assert.assertEquals(messageContext.getVariable("xsd_result_cache_hit"), Boolean.TRUE);
+    Assert.assertEquals(messageContext.getVariable("xsd_valid"), Boolean.FALSE);
+    Assert.assertEquals(messageContext.getVariable("xsd_error_1"), error);
+    Assert.assertEquals(
+        messageContext.getVariable("xsd_failing_paths"),
+        "#document/purchaseOrder[1]/billTo[1]/state[1]");
+    Assert.assertEquals(messageContext.getVariable("xsd_failing_paths"), paths);
+  }
+
   public static int countLines(String str) {
     if (str == null || str.isEmpty()) return 0;
     int lines = 1;
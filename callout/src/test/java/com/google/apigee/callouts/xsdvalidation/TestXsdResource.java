@@ -0,0 +1,91 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestXsdResource {
+
+  @Test
+  public void encodingIsDetected() {
+    Assert.assertEquals(XsdResource.of("<xs:schema/>").getEncoding(), "UTF-8");
+    byte[] latin1 =
+        "<?xml version='1.0' encoding='iso-8859-1'?><xs:schema/>"
+            .getBytes(StandardCharsets.ISO_8859_1);
+    Assert.assertEquals(XsdResource.of(latin1).getEncoding(), "ISO-8859-1");
+    byte[] utf16 = "﻿<xs:schema/>".getBytes(StandardCharsets.UTF_16LE);
+    Assert.assertEquals(XsdResource.of(utf16).getEncoding(), "UTF-16LE");
+  }
+
+  @Test
+  public void leadingWhitespaceIsSkipped() throws Exception {
+    XsdResource resource = XsdResource.of("\n  <?xml version='1.0'?><xs:schema/>");
+    Assert.assertEquals(resource.length(), "<?xml version='1.0'?><xs:schema/>".length());
+    try (InputStream in = resource.openStream()) {
+      Assert.assertEquals(in.read(), '<');
+    }
+    // the digest does not depend on the whitespace
+    Assert.assertEquals(
+        resource.getDigest(), XsdResource.of("<?xml version='1.0'?><xs:schema/>").getDigest());
+  }
+
+  private static String schemaFor(String declaredEncoding, String elementName) {
+    return "<?xml version='1.0' encoding='"
+        + declaredEncoding
+        + "'?>\n"
+        + "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>"
+        + "<xs:element name='"
+        + elementName
+        + "' type='xs:string'/>"
+        + "</xs:schema>";
+  }
+
+  private static void assertAccepts(Schema schema, String document) throws Exception {
+    schema.newValidator().validate(new StreamSource(new StringReader(document)));
+  }
+
+  @Test
+  public void stringContentIgnoresTheDeclaredEncoding() throws Exception {
+    for (String declared : new String[] {"ISO-8859-1", "UTF-16"}) {
+      XsdResource resource = XsdResource.of(schemaFor(declared, "caf\u00e9"));
+      Assert.assertEquals(resource.getEncoding(), "UTF-8", declared);
+      Schema schema = SchemaCache.compile(resource, null, null);
+      assertAccepts(schema, "<caf\u00e9>cr\u00e8me</caf\u00e9>");
+    }
+  }
+
+  @Test
+  public void importedStringContentIgnoresTheDeclaredEncoding() throws Exception {
+    XsdResource imported =
+        XsdResource.of(
+            schemaFor("ISO-8859-1", "caf\u00e9")
+                .replace("<xs:schema ", "<xs:schema targetNamespace='urn:caf\u00e9' "));
+    XsdResource main =
+        XsdResource.of(
+            "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>"
+                + "<xs:import namespace='urn:caf\u00e9' schemaLocation='caf\u00e9.xsd'/>"
+                + "</xs:schema>");
+    Schema schema =
+        SchemaCache.compile(main, Collections.singletonMap("caf\u00e9.xsd", imported), null);
+    assertAccepts(schema, "<c:caf\u00e9 xmlns:c='urn:caf\u00e9'>cr\u00e8me</c:caf\u00e9>");
+  }
+}